@@ -1,76 +1,1624 @@
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.CRC32C;
+import java.util.zip.GZIPOutputStream;
 
 enum LogLevel {
     INFO, WARNING, ERROR
 }
 
+enum LogFormat {
+    TEXT, BINARY
+}
+
+enum OverflowPolicy {
+    BLOCK, DROP_OLDEST, DROP_INFO_FIRST
+}
+
+enum RollInterval {
+    NONE, HOURLY, DAILY
+}
+
+class RollingPolicy {
+    final long maxBytes;
+    final RollInterval interval;
+    final int maxSegments;
+
+    public RollingPolicy(long maxBytes, RollInterval interval, int maxSegments) {
+        this.maxBytes = maxBytes;
+        this.interval = interval;
+        this.maxSegments = maxSegments;
+    }
+}
+
+class LoggerConfig {
+    final LogLevel level;
+    final String logFilePath;
+    final LogFormat format;
+    final long commitIntervalMillis;
+    final long commitBytes;
+    final RollingPolicy rollingPolicy;
+
+    public LoggerConfig(LogLevel level, String logFilePath, LogFormat format,
+                        long commitIntervalMillis, long commitBytes, RollingPolicy rollingPolicy) {
+        this.level = level;
+        this.logFilePath = logFilePath;
+        this.format = format;
+        this.commitIntervalMillis = commitIntervalMillis;
+        this.commitBytes = commitBytes;
+        this.rollingPolicy = rollingPolicy;
+    }
+
+    public static LoggerConfig defaults() {
+        return new LoggerConfig(LogLevel.INFO, "app.log", LogFormat.TEXT, 1000, 1024 * 1024, null);
+    }
+
+    public static LoggerConfig fromProperties(Properties props) {
+        RollingPolicy rollingPolicy = null;
+        String maxBytes = props.getProperty("logMaxBytes");
+        String interval = props.getProperty("logRollInterval");
+        if (maxBytes != null || interval != null) {
+            rollingPolicy = new RollingPolicy(Long.parseLong(maxBytes != null ? maxBytes : "0"),
+                    RollInterval.valueOf(interval != null ? interval : "NONE"),
+                    Integer.parseInt(props.getProperty("logMaxSegments", "10")));
+        }
+        return new LoggerConfig(LogLevel.valueOf(props.getProperty("logLevel", "INFO")),
+                props.getProperty("logFile", "app.log"),
+                LogFormat.valueOf(props.getProperty("logFormat", "TEXT")),
+                Long.parseLong(props.getProperty("logCommitIntervalMs", "1000")),
+                Long.parseLong(props.getProperty("logCommitBytes", "1048576")),
+                rollingPolicy);
+    }
+
+    public LoggerConfig withLevel(LogLevel level) {
+        return new LoggerConfig(level, logFilePath, format, commitIntervalMillis, commitBytes, rollingPolicy);
+    }
+
+    public LoggerConfig withFormat(LogFormat format) {
+        return new LoggerConfig(level, logFilePath, format, commitIntervalMillis, commitBytes, rollingPolicy);
+    }
+
+    public LoggerConfig withGroupCommit(long intervalMillis, long bytes) {
+        return new LoggerConfig(level, logFilePath, format, intervalMillis, bytes, rollingPolicy);
+    }
+
+    public LoggerConfig withRollingPolicy(RollingPolicy policy) {
+        return new LoggerConfig(level, logFilePath, format, commitIntervalMillis, commitBytes, policy);
+    }
+
+    public boolean sameSink(LoggerConfig other) {
+        return logFilePath.equals(other.logFilePath) && format == other.format
+                && commitIntervalMillis == other.commitIntervalMillis && commitBytes == other.commitBytes
+                && (rollingPolicy == other.rollingPolicy || rollingPolicy != null && other.rollingPolicy != null
+                    && rollingPolicy.maxBytes == other.rollingPolicy.maxBytes
+                    && rollingPolicy.interval == other.rollingPolicy.interval
+                    && rollingPolicy.maxSegments == other.rollingPolicy.maxSegments);
+    }
+}
+
+interface LogSink extends Closeable {
+    void append(LogLevel level, long timestamp, ByteBuffer record) throws IOException;
+    void flush() throws IOException;
+}
+
+interface IndexVisitor {
+    void record(long offset) throws IOException;
+    void gap(long start, long end) throws IOException;
+}
+
+class LogIndex implements Closeable {
+    static final int BUCKET_MILLIS = 1000;
+    private static final int BLOCK_MAGIC = 0x4C494458;
+    private static final int MAX_BLOCK_ENTRIES = 64 * 1024;
+    private static final int LEVELS = LogLevel.values().length;
+
+    private final FileChannel channel;
+    private final long[][] offsets = new long[LEVELS][64];
+    private final int[] counts = new int[LEVELS];
+    private long[] buckets = new long[32];
+    private int bucketLongs;
+    private long lastBucket = Long.MIN_VALUE;
+    private long blockStart = -1;
+    private long blockEnd;
+    private int entries;
+    private ByteBuffer block = ByteBuffer.allocate(64 * 1024);
+    private final long indexedEnd;
+
+    public static Path pathFor(Path log) {
+        return log.resolveSibling(log.getFileName() + ".idx");
+    }
+
+    public LogIndex(Path log, long dataEnd) throws IOException {
+        channel = FileChannel.open(pathFor(log),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long length = validLength(channel, dataEnd);
+        channel.truncate(length);
+        channel.position(length);
+        indexedEnd = indexedEnd(channel, length);
+    }
+
+    public long indexedEnd() { return indexedEnd; }
+
+    public void record(LogLevel level, long timestamp, long start, long end) throws IOException {
+        if (blockStart < 0) blockStart = start;
+        int l = level.ordinal();
+        if (counts[l] == offsets[l].length) offsets[l] = Arrays.copyOf(offsets[l], counts[l] * 2);
+        offsets[l][counts[l]++] = start;
+        long bucket = timestamp - Math.floorMod(timestamp, BUCKET_MILLIS);
+        if (bucket > lastBucket) {
+            if (bucketLongs + 2 > buckets.length) buckets = Arrays.copyOf(buckets, buckets.length * 2);
+            buckets[bucketLongs++] = bucket;
+            buckets[bucketLongs++] = start;
+            lastBucket = bucket;
+        }
+        blockEnd = end;
+        if (++entries >= MAX_BLOCK_ENTRIES) writeBlock();
+    }
+
+    public void writeBlock() throws IOException {
+        if (blockStart < 0) return;
+        int maxBytes = 32 + LEVELS * 9 + entries * 10 + 5 + bucketLongs / 2 * 18;
+        if (block.capacity() < maxBytes) block = ByteBuffer.allocate(maxBytes);
+        block.clear();
+        block.putInt(BLOCK_MAGIC).putInt(0).putLong(blockStart).putLong(blockEnd);
+        for (int l = 0; l < LEVELS; l++) {
+            int lengthAt = block.position();
+            block.putInt(0);
+            putVarLong(block, counts[l]);
+            long previous = blockStart;
+            for (int i = 0; i < counts[l]; i++) {
+                putVarLong(block, offsets[l][i] - previous);
+                previous = offsets[l][i];
+            }
+            block.putInt(lengthAt, block.position() - lengthAt - 4);
+            counts[l] = 0;
+        }
+        putVarLong(block, bucketLongs / 2);
+        for (int i = 0; i < bucketLongs; i += 2) {
+            block.putLong(buckets[i]);
+            putVarLong(block, buckets[i + 1] - blockStart);
+        }
+        block.putInt(4, block.position() - 8);
+        block.flip();
+        while (block.hasRemaining()) channel.write(block);
+        bucketLongs = 0;
+        entries = 0;
+        blockStart = -1;
+    }
+
+    public void force() throws IOException {
+        channel.force(false);
+    }
+
+    public void close() throws IOException {
+        writeBlock();
+        channel.close();
+    }
+
+    public static boolean query(Path log, long fileEnd, LogLevel level, long fromMillis, long toMillis,
+                                IndexVisitor visitor) throws IOException {
+        Path path = pathFor(log);
+        if (!Files.exists(path)) return false;
+        ByteBuffer index;
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            index = ch.map(FileChannel.MapMode.READ_ONLY, 0, validLength(ch, fileEnd));
+        }
+        long low = -1;
+        long high = fileEnd;
+        boolean highFound = false;
+        long indexedEnd = 0;
+        while (index.hasRemaining()) {
+            int next = index.position() + 8 + index.getInt(index.position() + 4);
+            long dataStart = index.getLong(index.position() + 8);
+            indexedEnd = index.getLong(index.position() + 16);
+            index.position(index.position() + 24);
+            for (int l = 0; l < LEVELS; l++) index.position(index.position() + 4 + index.getInt(index.position()));
+            long pairs = getVarLong(index);
+            for (long i = 0; i < pairs && !highFound; i++) {
+                long bucket = index.getLong();
+                long offset = dataStart + getVarLong(index);
+                if (low < 0 && bucket + BUCKET_MILLIS > fromMillis) low = offset;
+                if (bucket > toMillis) {
+                    high = offset;
+                    highFound = true;
+                }
+            }
+            index.position(next);
+        }
+        if (low < 0) low = indexedEnd;
+        index.rewind();
+        long covered = 0;
+        while (index.hasRemaining()) {
+            int next = index.position() + 8 + index.getInt(index.position() + 4);
+            long dataStart = index.getLong(index.position() + 8);
+            long dataEnd = index.getLong(index.position() + 16);
+            index.position(index.position() + 24);
+            if (dataStart >= high) break;
+            if (dataStart > covered && dataStart > low) visitor.gap(Math.max(covered, low), Math.min(dataStart, high));
+            if (dataEnd > low) {
+                for (int l = 0; l < level.ordinal(); l++) index.position(index.position() + 4 + index.getInt(index.position()));
+                index.getInt();
+                long count = getVarLong(index);
+                long offset = dataStart;
+                for (long i = 0; i < count; i++) {
+                    offset += getVarLong(index);
+                    if (offset >= high) break;
+                    if (offset >= low) visitor.record(offset);
+                }
+            }
+            covered = dataEnd;
+            index.position(next);
+        }
+        if (high > covered && high > low) visitor.gap(Math.max(covered, low), high);
+        return true;
+    }
+
+    private static long validLength(FileChannel channel, long dataEnd) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(24);
+        long size = channel.size();
+        long pos = 0;
+        while (pos + 24 <= size) {
+            header.clear();
+            while (header.hasRemaining() && channel.read(header, pos + header.position()) >= 0) {}
+            long next = pos + 8 + header.getInt(4);
+            if (header.getInt(0) != BLOCK_MAGIC || next > size || header.getLong(16) > dataEnd) break;
+            pos = next;
+        }
+        return pos;
+    }
+
+    private static long indexedEnd(FileChannel channel, long length) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(24);
+        long end = 0;
+        for (long pos = 0; pos < length; pos += 8 + header.getInt(4)) {
+            header.clear();
+            while (header.hasRemaining() && channel.read(header, pos + header.position()) >= 0) {}
+            end = header.getLong(16);
+        }
+        return end;
+    }
+
+    private static void putVarLong(ByteBuffer dst, long value) {
+        while ((value & ~0x7FL) != 0) {
+            dst.put((byte) (value & 0x7F | 0x80));
+            value >>>= 7;
+        }
+        dst.put((byte) value);
+    }
+
+    private static long getVarLong(ByteBuffer src) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = src.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) return value;
+        }
+    }
+}
+
+class MappedLogSink implements LogSink {
+    private static final int REGION_BYTES = 4 * 1024 * 1024;
+    private static final ScheduledExecutorService COMMITTER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "log-commit");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final FileChannel channel;
+    private final LogIndex index;
+    private final long commitBytes;
+    private final ScheduledFuture<?> commitTask;
+    private MappedByteBuffer region;
+    private long position;
+    private long committedPosition;
+
+    public MappedLogSink(String path, LogFormat format, long commitIntervalMillis, long commitBytes) throws IOException {
+        channel = FileChannel.open(Paths.get(path),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.commitBytes = commitBytes;
+        position = dataEnd(channel);
+        index = new LogIndex(Paths.get(path), position);
+        if (format == LogFormat.BINARY) {
+            long valid = BinaryLogReader.validEnd(channel, index.indexedEnd(), position);
+            if (valid < position) {
+                channel.truncate(valid);
+                position = valid;
+            }
+        }
+        committedPosition = position;
+        region = channel.map(FileChannel.MapMode.READ_WRITE, position, REGION_BYTES);
+        commitTask = commitIntervalMillis > 0
+                ? COMMITTER.scheduleWithFixedDelay(this::commitQuietly, commitIntervalMillis, commitIntervalMillis, TimeUnit.MILLISECONDS)
+                : null;
+    }
+
+    public synchronized void append(LogLevel level, long timestamp, ByteBuffer record) throws IOException {
+        long start = position;
+        while (record.hasRemaining()) {
+            if (!region.hasRemaining()) remap();
+            int n = Math.min(record.remaining(), region.remaining());
+            int limit = record.limit();
+            record.limit(record.position() + n);
+            region.put(record);
+            record.limit(limit);
+            position += n;
+        }
+        index.record(level, timestamp, start, position);
+        if (commitBytes > 0 && position - committedPosition >= commitBytes) commit();
+    }
+
+    public synchronized void flush() throws IOException {
+        commit();
+    }
+
+    public synchronized long size() { return position; }
+
+    public synchronized void close() throws IOException {
+        if (!channel.isOpen()) return;
+        if (commitTask != null) commitTask.cancel(false);
+        commit();
+        region = null;
+        index.close();
+        channel.truncate(position);
+        channel.close();
+    }
+
+    private void remap() throws IOException {
+        if (position > committedPosition) region.force();
+        region = channel.map(FileChannel.MapMode.READ_WRITE, position, REGION_BYTES);
+    }
+
+    private void commit() throws IOException {
+        if (position > committedPosition) {
+            region.force();
+            committedPosition = position;
+            index.writeBlock();
+            index.force();
+        }
+    }
+
+    private synchronized void commitQuietly() {
+        try {
+            if (channel.isOpen()) commit();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    static long dataEnd(FileChannel channel) throws IOException {
+        ByteBuffer block = ByteBuffer.allocate(64 * 1024);
+        long end = channel.size();
+        while (end > 0) {
+            long start = Math.max(0, end - block.capacity());
+            block.clear().limit((int) (end - start));
+            while (block.hasRemaining() && channel.read(block, start + block.position()) >= 0) {}
+            for (int i = block.position() - 1; i >= 0; i--) {
+                if (block.get(i) != 0) return start + i + 1;
+            }
+            end = start;
+        }
+        return 0;
+    }
+}
+
+class RollingLogSink implements LogSink {
+    private static final DateTimeFormatter SEGMENT_SUFFIX = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmssSSS");
+    private static final ExecutorService COMPRESSOR = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "log-compress");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        return t;
+    });
+
+    private final Path path;
+    private final RollingPolicy policy;
+    private final LogFormat format;
+    private final long commitIntervalMillis;
+    private final long commitBytes;
+    private final Pattern segmentName;
+    private MappedLogSink active;
+    private long nextRollAt;
+
+    public RollingLogSink(String path, RollingPolicy policy, LogFormat format, long commitIntervalMillis, long commitBytes) throws IOException {
+        this.path = Paths.get(path).toAbsolutePath();
+        this.policy = policy;
+        this.format = format;
+        this.commitIntervalMillis = commitIntervalMillis;
+        this.commitBytes = commitBytes;
+        this.segmentName = Pattern.compile(Pattern.quote(this.path.getFileName().toString()) + "\\.\\d{8}-\\d{9}(\\.gz)?");
+        long openedAt = Files.exists(this.path) && Files.size(this.path) > 0
+                ? Files.getLastModifiedTime(this.path).toMillis()
+                : System.currentTimeMillis();
+        active = new MappedLogSink(path, format, commitIntervalMillis, commitBytes);
+        nextRollAt = nextBoundary(openedAt);
+    }
+
+    public synchronized void append(LogLevel level, long timestamp, ByteBuffer record) throws IOException {
+        long size = active.size();
+        if (size > 0 && (policy.maxBytes > 0 && size + record.remaining() > policy.maxBytes
+                || System.currentTimeMillis() >= nextRollAt)) {
+            roll();
+        }
+        active.append(level, timestamp, record);
+    }
+
+    public synchronized void flush() throws IOException { active.flush(); }
+
+    public synchronized void close() throws IOException { active.close(); }
+
+    private void roll() throws IOException {
+        active.close();
+        long now = System.currentTimeMillis();
+        Path segment;
+        for (long stamp = now; ; stamp++) {
+            String suffix = SEGMENT_SUFFIX.format(Instant.ofEpochMilli(stamp).atZone(ZoneId.systemDefault()));
+            segment = path.resolveSibling(path.getFileName() + "." + suffix);
+            if (!Files.exists(segment) && !Files.exists(Paths.get(segment + ".gz"))) break;
+        }
+        Files.move(path, segment, StandardCopyOption.ATOMIC_MOVE);
+        if (Files.exists(LogIndex.pathFor(path))) {
+            Files.move(LogIndex.pathFor(path), LogIndex.pathFor(segment), StandardCopyOption.ATOMIC_MOVE);
+        }
+        active = new MappedLogSink(path.toString(), format, commitIntervalMillis, commitBytes);
+        nextRollAt = nextBoundary(now);
+        Path closed = segment;
+        COMPRESSOR.execute(() -> compress(closed));
+    }
+
+    private long nextBoundary(long from) {
+        ZonedDateTime time = Instant.ofEpochMilli(from).atZone(ZoneId.systemDefault());
+        switch (policy.interval) {
+            case HOURLY: return time.truncatedTo(ChronoUnit.HOURS).plusHours(1).toInstant().toEpochMilli();
+            case DAILY: return time.truncatedTo(ChronoUnit.DAYS).plusDays(1).toInstant().toEpochMilli();
+            default: return Long.MAX_VALUE;
+        }
+    }
+
+    private void compress(Path segment) {
+        Path gz = Paths.get(segment + ".gz");
+        Path tmp = Paths.get(segment + ".gz.tmp");
+        try {
+            try (InputStream in = Files.newInputStream(segment);
+                 OutputStream out = new GZIPOutputStream(Files.newOutputStream(tmp), 64 * 1024)) {
+                in.transferTo(out);
+            }
+            Files.move(tmp, gz, StandardCopyOption.ATOMIC_MOVE);
+            Files.delete(segment);
+            Files.deleteIfExists(LogIndex.pathFor(segment));
+            enforceRetention();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void enforceRetention() throws IOException {
+        if (policy.maxSegments <= 0) return;
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> dir = Files.newDirectoryStream(path.getParent())) {
+            for (Path p : dir) {
+                if (segmentName.matcher(p.getFileName().toString()).matches()) segments.add(p);
+            }
+        }
+        Collections.sort(segments);
+        for (int i = 0; i < segments.size() - policy.maxSegments; i++) {
+            Files.deleteIfExists(segments.get(i));
+        }
+    }
+}
+
+class LogEncoder {
+    private static final byte[][] LEVEL_TAGS = new byte[LogLevel.values().length][];
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+    private static final ThreadLocal<LogEncoder> LOCAL = ThreadLocal.withInitial(LogEncoder::new);
+    private static final long EPOCH_NANOS_OFFSET = System.currentTimeMillis() * 1_000_000L - System.nanoTime();
+
+    static {
+        for (LogLevel level : LogLevel.values()) {
+            LEVEL_TAGS[level.ordinal()] = ("[" + level + "] ").getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    private ByteBuffer buffer = ByteBuffer.allocate(1024);
+    private final StringBuilder text = new StringBuilder(256);
+    private final CRC32C crc = new CRC32C();
+
+    public static LogEncoder local() { return LOCAL.get(); }
+
+    public static long epochNanos() { return System.nanoTime() + EPOCH_NANOS_OFFSET; }
+
+    public static void format(StringBuilder dst, String pattern, Object[] args) {
+        if (args == null || args.length == 0) {
+            dst.append(pattern);
+            return;
+        }
+        int from = 0;
+        for (Object arg : args) {
+            int at = pattern.indexOf("{}", from);
+            if (at < 0) break;
+            dst.append(pattern, from, at);
+            if (arg instanceof CharSequence) dst.append((CharSequence) arg);
+            else if (arg instanceof Integer || arg instanceof Long) dst.append(((Number) arg).longValue());
+            else if (arg instanceof Double) dst.append(((Double) arg).doubleValue());
+            else if (arg instanceof Boolean) dst.append(((Boolean) arg).booleanValue());
+            else dst.append(arg);
+            from = at + 2;
+        }
+        dst.append(pattern, from, pattern.length());
+    }
+
+    public ByteBuffer encode(LogFormat format, LogLevel level, long epochNanos, long threadId, String pattern, Object[] args) {
+        CharSequence message = pattern;
+        if (args != null) {
+            text.setLength(0);
+            format(text, pattern, args);
+            message = text;
+        }
+        return encode(format, level, epochNanos, threadId, message);
+    }
+
+    public ByteBuffer encode(LogFormat format, LogLevel level, long epochNanos, long threadId, CharSequence message) {
+        return format == LogFormat.BINARY ? encodeBinary(level, epochNanos, threadId, message) : encode(level, message);
+    }
+
+    public ByteBuffer encodeBinary(LogLevel level, long epochNanos, long threadId, CharSequence message) {
+        ensureCapacity(BinaryLogReader.HEADER_BYTES + message.length() * 3 + BinaryLogReader.TRAILER_BYTES);
+        buffer.clear();
+        buffer.position(4);
+        buffer.put((byte) level.ordinal()).putLong(epochNanos).putLong(threadId);
+        putUtf8(buffer, message, false);
+        int payloadEnd = buffer.position();
+        buffer.putInt(0, payloadEnd - BinaryLogReader.HEADER_BYTES);
+        crc.reset();
+        crc.update(buffer.array(), 4, payloadEnd - 4);
+        buffer.putInt((int) crc.getValue()).put((byte) '\n');
+        buffer.flip();
+        return buffer;
+    }
+
+    public ByteBuffer encode(LogLevel level, CharSequence message) {
+        byte[] tag = LEVEL_TAGS[level.ordinal()];
+        ensureCapacity(tag.length + message.length() * 3 + LINE_SEPARATOR.length);
+        buffer.clear();
+        buffer.put(tag);
+        putUtf8(buffer, message, true);
+        buffer.put(LINE_SEPARATOR);
+        buffer.flip();
+        return buffer;
+    }
+
+    private void ensureCapacity(int maxBytes) {
+        if (buffer.capacity() < maxBytes) buffer = ByteBuffer.allocate(Math.max(maxBytes, buffer.capacity() * 2));
+    }
+
+    private static void putUtf8(ByteBuffer dst, CharSequence s, boolean text) {
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                dst.put(c == 0 && text ? (byte) '?' : (byte) c);
+            } else if (c < 0x800) {
+                dst.put((byte) (0xC0 | c >> 6));
+                dst.put((byte) (0x80 | c & 0x3F));
+            } else if (java.lang.Character.isHighSurrogate(c) && i + 1 < length && java.lang.Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = java.lang.Character.toCodePoint(c, s.charAt(++i));
+                dst.put((byte) (0xF0 | cp >> 18));
+                dst.put((byte) (0x80 | cp >> 12 & 0x3F));
+                dst.put((byte) (0x80 | cp >> 6 & 0x3F));
+                dst.put((byte) (0x80 | cp & 0x3F));
+            } else if (java.lang.Character.isSurrogate(c)) {
+                dst.put((byte) '?');
+            } else {
+                dst.put((byte) (0xE0 | c >> 12));
+                dst.put((byte) (0x80 | c >> 6 & 0x3F));
+                dst.put((byte) (0x80 | c & 0x3F));
+            }
+        }
+    }
+}
+
+class LogEvent {
+    LogLevel level;
+    long epochNanos;
+    long threadId;
+    final StringBuilder message = new StringBuilder(128);
+}
+
+class LogRingBuffer {
+    private final LogEvent[] events;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    public LogRingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1) << 1);
+        events = new LogEvent[size];
+        sequences = new AtomicLongArray(size);
+        mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            events[i] = new LogEvent();
+            sequences.set(i, i);
+        }
+    }
+
+    public int capacity() { return events.length; }
+    public int size() { return (int) Math.max(0, tail.get() - head.get()); }
+    public boolean isEmpty() { return tail.get() == head.get(); }
+    public long producedPosition() { return tail.get(); }
+    public LogEvent get(long pos) { return events[(int) pos & mask]; }
+
+    public long tryClaim() {
+        long pos = tail.get();
+        for (;;) {
+            long diff = sequences.get((int) pos & mask) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) return pos;
+            } else if (diff < 0) {
+                return -1;
+            }
+            pos = tail.get();
+        }
+    }
+
+    public void publish(long pos) { sequences.lazySet((int) pos & mask, pos + 1); }
+
+    public long tryConsume() {
+        long pos = head.get();
+        for (;;) {
+            long diff = sequences.get((int) pos & mask) - (pos + 1);
+            if (diff == 0) {
+                if (head.compareAndSet(pos, pos + 1)) return pos;
+            } else if (diff < 0) {
+                return -1;
+            }
+            pos = head.get();
+        }
+    }
+
+    public void release(long pos) { sequences.lazySet((int) pos & mask, pos + mask + 1); }
+}
+
+class AsyncLogAppender implements Closeable {
+    private static final long DROP = -1;
+    private static final long WRITER_GONE = -2;
+    private final LogRingBuffer ring;
+    private final OverflowPolicy policy;
+    private final LogFormat format;
+    private final LogSink sink;
+    private final Thread writer;
+    private final LogEncoder encoder = new LogEncoder();
+    private final AtomicInteger activeProducers = new AtomicInteger();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile boolean running = true;
+    private volatile boolean writerParked;
+    private volatile long writtenUpTo;
+
+    public AsyncLogAppender(LogSink sink, int capacity, OverflowPolicy policy, LogFormat format) {
+        this.sink = sink;
+        this.policy = policy;
+        this.format = format;
+        this.ring = new LogRingBuffer(capacity);
+        writer = new Thread(this::drainLoop, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public int capacity() { return ring.capacity(); }
+    public OverflowPolicy policy() { return policy; }
+    public long droppedCount() { return dropped.get(); }
+
+    public boolean append(LogLevel level, String pattern, Object[] args) {
+        activeProducers.incrementAndGet();
+        try {
+            if (!running) return false;
+            long pos = claim(level);
+            if (pos == WRITER_GONE) return false;
+            if (pos == DROP) {
+                dropped.incrementAndGet();
+                return true;
+            }
+            LogEvent event = ring.get(pos);
+            event.level = level;
+            event.epochNanos = LogEncoder.epochNanos();
+            event.threadId = Thread.currentThread().getId();
+            event.message.setLength(0);
+            LogEncoder.format(event.message, pattern, args);
+            ring.publish(pos);
+            if (writerParked) LockSupport.unpark(writer);
+            return true;
+        } finally {
+            activeProducers.decrementAndGet();
+        }
+    }
+
+    private long claim(LogLevel level) {
+        boolean droppable = policy == OverflowPolicy.DROP_INFO_FIRST && level == LogLevel.INFO;
+        if (droppable && ring.size() >= ring.capacity() - ring.capacity() / 4) return DROP;
+        for (int spins = 0; ; spins++) {
+            long pos = ring.tryClaim();
+            if (pos >= 0) return pos;
+            if (droppable) return DROP;
+            if (policy == OverflowPolicy.DROP_OLDEST) {
+                long oldest = ring.tryConsume();
+                if (oldest >= 0) {
+                    ring.release(oldest);
+                    dropped.incrementAndGet();
+                }
+                continue;
+            }
+            if (!writer.isAlive()) return WRITER_GONE;
+            if (writerParked) LockSupport.unpark(writer);
+            if (spins < 100) Thread.onSpinWait();
+            else LockSupport.parkNanos(50_000);
+        }
+    }
+
+    public void flush() throws IOException {
+        long target = ring.producedPosition();
+        while (writtenUpTo < target && writer.isAlive()) {
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(100_000);
+        }
+        sink.flush();
+    }
+
+    public void close() throws IOException {
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void drainLoop() {
+        try {
+            while (running || activeProducers.get() > 0 || !ring.isEmpty()) {
+                long pos = ring.tryConsume();
+                if (pos < 0) {
+                    writerParked = true;
+                    if (running && ring.isEmpty()) LockSupport.parkNanos(1_000_000);
+                    writerParked = false;
+                    continue;
+                }
+                LogEvent event = ring.get(pos);
+                try {
+                    sink.append(event.level, event.epochNanos / 1_000_000,
+                            encoder.encode(format, event.level, event.epochNanos, event.threadId, event.message));
+                } catch (IOException | RuntimeException e) {
+                    e.printStackTrace();
+                }
+                ring.release(pos);
+                writtenUpTo = pos + 1;
+            }
+        } finally {
+            running = false;
+        }
+    }
+}
+
 class Logger {
+    private static final long RELOAD_DEBOUNCE_MILLIS = 100;
     private static volatile Logger instance;
-    private LogLevel currentLevel = LogLevel.INFO;
-    private String logFilePath = "app.log";
+    private volatile LoggerConfig config = LoggerConfig.defaults();
     private final Object lock = new Object();
+    private LogSink sink;
+    private volatile AsyncLogAppender asyncAppender;
+    private WatchService configWatcher;
+
+    private Logger() {
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown, "log-shutdown"));
+    }
+
+    public static Logger getInstance() {
+        if (instance == null) {
+            synchronized (Logger.class) {
+                if (instance == null) {
+                    instance = new Logger();
+                }
+            }
+        }
+        return instance;
+    }
+
+    public LoggerConfig getConfig() {
+        return config;
+    }
+
+    public void setLogLevel(LogLevel level) {
+        synchronized (lock) {
+            config = config.withLevel(level);
+        }
+    }
+
+    public void configureFromFile(String configFile) throws IOException {
+        Properties props = new Properties();
+        try (FileReader reader = new FileReader(configFile)) {
+            props.load(reader);
+        }
+        apply(LoggerConfig.fromProperties(props));
+    }
+
+    public void setGroupCommit(long intervalMillis, long bytes) throws IOException {
+        synchronized (lock) {
+            apply(config.withGroupCommit(intervalMillis, bytes));
+        }
+    }
+
+    public void setFormat(LogFormat format) throws IOException {
+        synchronized (lock) {
+            apply(config.withFormat(format));
+        }
+    }
+
+    public void setRollingPolicy(RollingPolicy policy) throws IOException {
+        synchronized (lock) {
+            apply(config.withRollingPolicy(policy));
+        }
+    }
+
+    public void apply(LoggerConfig next) throws IOException {
+        synchronized (lock) {
+            LoggerConfig previous = config;
+            if (previous.format != next.format && previous.logFilePath.equals(next.logFilePath)) {
+                flush();
+                if (hasRecords(next.logFilePath)) {
+                    throw new IllegalStateException("Cannot switch " + next.logFilePath + " from " + previous.format
+                            + " to " + next.format + " while it holds records; use a new logFile");
+                }
+            }
+            config = next;
+            if (!previous.sameSink(next)) reopenSink();
+        }
+    }
+
+    private static boolean hasRecords(String logFilePath) throws IOException {
+        Path path = Paths.get(logFilePath);
+        if (!Files.exists(path)) return false;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return MappedLogSink.dataEnd(channel) > 0;
+        }
+    }
+
+    public void watchConfig(String configFile) throws IOException {
+        Path path = Paths.get(configFile).toAbsolutePath();
+        WatchService watcher = path.getFileSystem().newWatchService();
+        path.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        synchronized (lock) {
+            stopWatchingConfig();
+            configWatcher = watcher;
+        }
+        Thread thread = new Thread(() -> watchLoop(watcher, path), "log-config-watch");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stopWatchingConfig() throws IOException {
+        synchronized (lock) {
+            if (configWatcher != null) configWatcher.close();
+            configWatcher = null;
+        }
+    }
+
+    private void watchLoop(WatchService watcher, Path path) {
+        try {
+            for (;;) {
+                WatchKey key = watcher.take();
+                boolean changed = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (path.getFileName().equals(event.context())) changed = true;
+                }
+                key.reset();
+                if (!changed) continue;
+                Thread.sleep(RELOAD_DEBOUNCE_MILLIS);
+                while ((key = watcher.poll()) != null) {
+                    key.pollEvents();
+                    key.reset();
+                }
+                try {
+                    configureFromFile(path.toString());
+                } catch (IOException | RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void enableAsync(int capacity, OverflowPolicy policy) throws IOException {
+        synchronized (lock) {
+            AsyncLogAppender previous = asyncAppender;
+            asyncAppender = null;
+            if (previous != null) previous.close();
+            asyncAppender = new AsyncLogAppender(openSink(), capacity, policy, config.format);
+        }
+    }
+
+    public void flush() {
+        synchronized (lock) {
+            try {
+                if (asyncAppender != null) asyncAppender.flush();
+                if (sink != null) sink.flush();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public void shutdown() {
+        synchronized (lock) {
+            AsyncLogAppender appender = asyncAppender;
+            asyncAppender = null;
+            try {
+                if (appender != null) appender.close();
+                if (sink != null) sink.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            sink = null;
+        }
+    }
+
+    private LogSink openSink() throws IOException {
+        if (sink == null) {
+            LoggerConfig c = config;
+            sink = c.rollingPolicy != null
+                    ? new RollingLogSink(c.logFilePath, c.rollingPolicy, c.format, c.commitIntervalMillis, c.commitBytes)
+                    : new MappedLogSink(c.logFilePath, c.format, c.commitIntervalMillis, c.commitBytes);
+        }
+        return sink;
+    }
+
+    private void reopenSink() throws IOException {
+        AsyncLogAppender appender = asyncAppender;
+        asyncAppender = null;
+        if (appender != null) appender.close();
+        if (sink != null) sink.close();
+        sink = null;
+        if (appender != null) {
+            asyncAppender = new AsyncLogAppender(openSink(), appender.capacity(), appender.policy(), config.format);
+        }
+    }
+
+    public boolean isEnabled(LogLevel level) {
+        return level.ordinal() >= config.level.ordinal();
+    }
+
+    public void log(String message, LogLevel level) {
+        if (isEnabled(level)) write(level, message, null);
+    }
+
+    public void log(LogLevel level, Supplier<String> message) {
+        if (isEnabled(level)) write(level, message.get(), null);
+    }
+
+    public void log(LogLevel level, String pattern, Object... args) {
+        if (isEnabled(level)) write(level, pattern, args);
+    }
+
+    private void write(LogLevel level, String pattern, Object[] args) {
+        AsyncLogAppender appender = asyncAppender;
+        if (appender != null && appender.append(level, pattern, args)) return;
+        synchronized (lock) {
+            try {
+                long now = LogEncoder.epochNanos();
+                ByteBuffer record = LogEncoder.local().encode(config.format, level, now, Thread.currentThread().getId(), pattern, args);
+                openSink().append(level, now / 1_000_000, record);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
+
+class LogLineReader {
+    private final FileChannel channel;
+    private final long end;
+    private ByteBuffer window = ByteBuffer.allocate(64 * 1024);
+    private long windowStart;
+    private int lineStart;
+    private int lineEnd;
 
-    private Logger() {}
+    public LogLineReader(FileChannel channel, long end) {
+        this.channel = channel;
+        this.end = end;
+        window.limit(0);
+    }
 
-    public static Logger getInstance() {
-        if (instance == null) {
-            synchronized (Logger.class) {
-                if (instance == null) {
-                    instance = new Logger();
-                }
+    public String lineAt(long offset) throws IOException {
+        return locate(offset) ? decode() : null;
+    }
+
+    private boolean locate(long offset) throws IOException {
+        if (offset >= end) return false;
+        for (;;) {
+            if (offset < windowStart || offset >= windowStart + window.limit()) load(offset);
+            int from = (int) (offset - windowStart);
+            int i = from;
+            int limit = window.limit();
+            byte[] bytes = window.array();
+            while (i < limit && bytes[i] != '\n' && bytes[i] != 0) i++;
+            if (i < limit || windowStart + limit >= end) {
+                if (i == from && (i == limit || bytes[i] == 0)) return false;
+                lineStart = from;
+                lineEnd = i > from && bytes[i - 1] == '\r' ? i - 1 : i;
+                return true;
             }
+            if (from == 0) window = ByteBuffer.allocate(window.capacity() * 2);
+            load(offset);
         }
-        return instance;
     }
 
-    public void setLogLevel(LogLevel level) {
-        currentLevel = level;
+    private void load(long offset) throws IOException {
+        window.clear();
+        window.limit((int) Math.min(window.capacity(), end - offset));
+        while (window.hasRemaining() && channel.read(window, offset + window.position()) >= 0) {}
+        window.flip();
+        windowStart = offset;
     }
 
-    public void configureFromFile(String configFile) throws IOException {
-        Properties props = new Properties();
-        try (FileReader reader = new FileReader(configFile)) {
-            props.load(reader);
-            String level = props.getProperty("logLevel", "INFO");
-            logFilePath = props.getProperty("logFile", "app.log");
-            setLogLevel(LogLevel.valueOf(level));
+    private String decode() {
+        return new String(window.array(), lineStart, lineEnd - lineStart, StandardCharsets.UTF_8);
+    }
+}
+
+class ParallelLogScan implements Iterator<String>, Closeable {
+    private static final int CHUNK_BYTES = 8 * 1024 * 1024;
+    private static final int OVERHANG_BYTES = 64 * 1024;
+
+    private final FileChannel channel;
+    private final long start;
+    private final long stop;
+    private final long fileEnd;
+    private final byte[] tag;
+    private final ForkJoinPool pool;
+    private final ArrayDeque<ForkJoinTask<List<String>>> inFlight = new ArrayDeque<>();
+    private long nextChunk;
+    private Iterator<String> current = Collections.emptyIterator();
+
+    public ParallelLogScan(FileChannel channel, long start, long stop, byte[] tag, ForkJoinPool pool) throws IOException {
+        this.channel = channel;
+        this.start = start;
+        this.fileEnd = channel.size();
+        this.stop = Math.min(stop, fileEnd);
+        this.tag = tag;
+        this.pool = pool;
+        nextChunk = start;
+        fill();
+    }
+
+    public boolean hasNext() {
+        while (!current.hasNext()) {
+            ForkJoinTask<List<String>> task = inFlight.poll();
+            if (task == null) return false;
+            try {
+                current = task.get().iterator();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new UncheckedIOException(new InterruptedIOException());
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                while (cause.getClass() == RuntimeException.class && cause.getCause() != null) cause = cause.getCause();
+                throw cause instanceof IOException ? new UncheckedIOException((IOException) cause) : new RuntimeException(cause);
+            }
+            fill();
         }
+        return true;
     }
 
-    public void log(String message, LogLevel level) {
-        if (level.ordinal() >= currentLevel.ordinal()) {
-            synchronized (lock) {
-                try (FileWriter fw = new FileWriter(logFilePath, true);
-                     BufferedWriter bw = new BufferedWriter(fw)) {
-                    bw.write("[" + level + "] " + message);
-                    bw.newLine();
-                } catch (IOException e) {
+    public String next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        return current.next();
+    }
+
+    public void close() {
+        for (ForkJoinTask<List<String>> task : inFlight) task.cancel(false);
+        inFlight.clear();
+    }
+
+    private void fill() {
+        while (nextChunk < stop && inFlight.size() < pool.getParallelism() * 2) {
+            long from = nextChunk;
+            long to = Math.min(stop, from + CHUNK_BYTES);
+            inFlight.add(pool.submit(() -> scanChunk(from, to)));
+            nextChunk = to;
+        }
+    }
+
+    private List<String> scanChunk(long from, long to) throws IOException {
+        long mapStart = from > start ? from - 1 : from;
+        for (long overhang = OVERHANG_BYTES; ; overhang *= 2) {
+            long mapEnd = Math.min(fileEnd, to + overhang);
+            List<String> matches = scanMapped(channel.map(FileChannel.MapMode.READ_ONLY, mapStart, mapEnd - mapStart),
+                    mapStart, from, to, mapEnd == fileEnd);
+            if (matches != null) return matches;
+        }
+    }
+
+    private List<String> scanMapped(MappedByteBuffer buf, long base, long from, long to, boolean complete) {
+        List<String> matches = new ArrayList<>();
+        int limit = buf.limit();
+        int lineLimit = (int) (to - base);
+        int p = (int) (from - base);
+        if (from > start) {
+            int i = 0;
+            while (i < lineLimit - 1 && buf.get(i) != '\n' && buf.get(i) != 0) i++;
+            if (buf.get(i) != '\n') return matches;
+            p = i + 1;
+        }
+        byte[] line = new byte[256];
+        while (p < lineLimit && buf.get(p) != 0) {
+            int q = p;
+            while (q < limit && buf.get(q) != '\n' && buf.get(q) != 0) q++;
+            if (q == limit && !complete) return null;
+            if (matches(buf, p, q)) {
+                int end = q > p && buf.get(q - 1) == '\r' ? q - 1 : q;
+                if (line.length < end - p) line = new byte[end - p];
+                buf.get(p, line, 0, end - p);
+                matches.add(new String(line, 0, end - p, StandardCharsets.UTF_8));
+            }
+            if (q == limit || buf.get(q) == 0) break;
+            p = q + 1;
+        }
+        return matches;
+    }
+
+    private boolean matches(ByteBuffer buf, int p, int q) {
+        if (q - p < tag.length) return false;
+        for (int i = 0; i < tag.length; i++) {
+            if (buf.get(p + i) != tag[i]) return false;
+        }
+        return true;
+    }
+}
+
+class LogFollower implements Closeable {
+    private static final long POLL_MILLIS = 500;
+
+    private final Path path;
+    private final byte[] tag;
+    private final LogLevel binaryLevel;
+    private final Consumer<String> subscriber;
+    private final BlockingQueue<String> queue;
+    private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+    private final Thread reader;
+    private final Thread deliverer;
+    private volatile boolean running = true;
+    private FileChannel channel;
+    private Object fileKey;
+    private volatile long offset;
+    private byte[] partial = new byte[256];
+    private int partialLength;
+
+    public LogFollower(Path path, byte[] tag, Consumer<String> subscriber, int bufferCapacity) throws IOException {
+        this(path, tag, null, subscriber, bufferCapacity);
+    }
+
+    public LogFollower(Path path, LogLevel binaryLevel, Consumer<String> subscriber, int bufferCapacity) throws IOException {
+        this(path, null, binaryLevel, subscriber, bufferCapacity);
+    }
+
+    private LogFollower(Path path, byte[] tag, LogLevel binaryLevel, Consumer<String> subscriber, int bufferCapacity) throws IOException {
+        this.path = path.toAbsolutePath();
+        this.tag = tag;
+        this.binaryLevel = binaryLevel;
+        this.subscriber = subscriber;
+        this.queue = new ArrayBlockingQueue<>(bufferCapacity);
+        if (Files.exists(this.path)) {
+            open();
+            offset = MappedLogSink.dataEnd(channel);
+        }
+        reader = new Thread(this::readLoop, "log-follow");
+        deliverer = new Thread(this::deliverLoop, "log-follow-deliver");
+        reader.setDaemon(true);
+        deliverer.setDaemon(true);
+        reader.start();
+        deliverer.start();
+    }
+
+    public long position() { return offset; }
+
+    public void close() throws IOException {
+        running = false;
+        reader.interrupt();
+        try {
+            reader.join();
+            deliverer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void readLoop() {
+        WatchService watcher = null;
+        try {
+            watcher = path.getFileSystem().newWatchService();
+            path.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        } catch (IOException | UnsupportedOperationException e) {
+            watcher = null;
+        }
+        try {
+            while (running) {
+                if (channel != null) readAvailable();
+                checkRotation();
+                if (watcher != null) {
+                    WatchKey key = watcher.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                    if (key != null) {
+                        key.pollEvents();
+                        key.reset();
+                    }
+                } else {
+                    Thread.sleep(POLL_MILLIS);
+                }
+            }
+        } catch (InterruptedException | ClosedByInterruptException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            running = false;
+            try {
+                if (watcher != null) watcher.close();
+                if (channel != null) channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void deliverLoop() {
+        try {
+            while (running || !queue.isEmpty()) {
+                String line = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (line == null) continue;
+                try {
+                    subscriber.accept(line);
+                } catch (RuntimeException e) {
                     e.printStackTrace();
                 }
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void open() throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+        fileKey = Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+        offset = 0;
+        partialLength = 0;
+    }
+
+    private void checkRotation() throws IOException, InterruptedException {
+        if (!Files.exists(path)) return;
+        Object key = Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+        if (channel != null && (key == null || key.equals(fileKey))) return;
+        if (channel != null) {
+            readAvailable();
+            channel.close();
+        }
+        open();
+        readAvailable();
+    }
+
+    private void readAvailable() throws IOException, InterruptedException {
+        long size = channel.size();
+        if (size < offset) {
+            offset = 0;
+            partialLength = 0;
+        }
+        if (binaryLevel != null) {
+            BinaryLogReader records = new BinaryLogReader(channel, size);
+            while (records.readAt(offset)) {
+                if (records.level() == binaryLevel) queue.put(records.record().toText());
+                offset = records.next();
+            }
+            return;
+        }
+        while (offset < size) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), size - offset));
+            int n = channel.read(buffer, offset);
+            if (n <= 0) break;
+            int consumed = consume(buffer.array(), n);
+            offset += consumed;
+            if (consumed < n) break;
+        }
+    }
+
+    private int consume(byte[] bytes, int length) throws InterruptedException {
+        int lineStart = 0;
+        for (int i = 0; i < length; i++) {
+            byte b = bytes[i];
+            if (b == 0) {
+                appendPartial(bytes, lineStart, i);
+                return i;
+            }
+            if (b == '\n') {
+                appendPartial(bytes, lineStart, i);
+                emit();
+                lineStart = i + 1;
+            }
+        }
+        appendPartial(bytes, lineStart, length);
+        return length;
+    }
+
+    private void appendPartial(byte[] bytes, int from, int to) {
+        int n = to - from;
+        if (partialLength + n > partial.length) partial = Arrays.copyOf(partial, Math.max(partial.length * 2, partialLength + n));
+        System.arraycopy(bytes, from, partial, partialLength, n);
+        partialLength += n;
+    }
+
+    private void emit() throws InterruptedException {
+        int length = partialLength > 0 && partial[partialLength - 1] == '\r' ? partialLength - 1 : partialLength;
+        partialLength = 0;
+        if (length < tag.length) return;
+        for (int i = 0; i < tag.length; i++) {
+            if (partial[i] != tag[i]) return;
+        }
+        queue.put(new String(partial, 0, length, StandardCharsets.UTF_8));
+    }
+}
+
+class LogRecord {
+    LogLevel level;
+    long epochNanos;
+    long threadId;
+    String message;
+
+    public LogRecord(LogLevel level, long epochNanos, long threadId, String message) {
+        this.level = level;
+        this.epochNanos = epochNanos;
+        this.threadId = threadId;
+        this.message = message;
+    }
+
+    public String toText() { return "[" + level + "] " + message; }
+}
+
+class BinaryLogReader {
+    static final int HEADER_BYTES = 4 + 1 + 8 + 8;
+    static final int TRAILER_BYTES = 4 + 1;
+    private static final LogLevel[] LEVELS = LogLevel.values();
+
+    private final FileChannel channel;
+    private final long end;
+    private final CRC32C crc = new CRC32C();
+    private ByteBuffer window = ByteBuffer.allocate(64 * 1024);
+    private long windowStart;
+    private int at;
+    private int length;
+    private long next;
+
+    public BinaryLogReader(FileChannel channel, long end) {
+        this.channel = channel;
+        this.end = end;
+        window.limit(0);
+    }
+
+    public boolean readAt(long offset) throws IOException {
+        next = end;
+        if (!ensure(offset, HEADER_BYTES + TRAILER_BYTES)) return false;
+        int n = window.getInt((int) (offset - windowStart));
+        if (n < 0 || n > end - offset - HEADER_BYTES - TRAILER_BYTES) return false;
+        int total = HEADER_BYTES + n + TRAILER_BYTES;
+        if (!ensure(offset, total)) return false;
+        int start = (int) (offset - windowStart);
+        crc.reset();
+        crc.update(window.array(), start + 4, HEADER_BYTES - 4 + n);
+        if (window.getInt(start + HEADER_BYTES + n) != (int) crc.getValue()
+                || window.get(start + total - 1) != '\n'
+                || window.get(start + 4) >= LEVELS.length) {
+            return false;
         }
+        at = start;
+        length = n;
+        next = offset + total;
+        return true;
+    }
+
+    public static long validEnd(FileChannel channel, long from, long end) throws IOException {
+        BinaryLogReader records = new BinaryLogReader(channel, end);
+        long offset = from;
+        while (records.readAt(offset)) offset = records.next();
+        return offset;
+    }
+
+    public long next() { return next; }
+    public LogLevel level() { return LEVELS[window.get(at + 4)]; }
+    public long epochNanos() { return window.getLong(at + 5); }
+    public long threadId() { return window.getLong(at + 13); }
+
+    public LogRecord record() {
+        String message = new String(window.array(), at + HEADER_BYTES, length, StandardCharsets.UTF_8);
+        return new LogRecord(level(), epochNanos(), threadId(), message);
+    }
+
+    private boolean ensure(long offset, int n) throws IOException {
+        if (offset + n > end) return false;
+        if (offset >= windowStart && offset + n <= windowStart + window.limit()) return true;
+        if (window.capacity() < n) window = ByteBuffer.allocate(Math.max(n, window.capacity() * 2));
+        window.clear();
+        window.limit((int) Math.min(window.capacity(), end - offset));
+        while (window.hasRemaining() && channel.read(window, offset + window.position()) >= 0) {}
+        window.flip();
+        windowStart = offset;
+        return window.limit() >= n;
     }
 }
 
 class LogReader {
     private String logFilePath;
+    private LogFormat format;
+    private ForkJoinPool pool;
 
     public LogReader(String logFilePath) {
+        this(logFilePath, LogFormat.TEXT, ForkJoinPool.commonPool());
+    }
+
+    public LogReader(String logFilePath, LogFormat format) {
+        this(logFilePath, format, ForkJoinPool.commonPool());
+    }
+
+    public LogReader(String logFilePath, LogFormat format, ForkJoinPool pool) {
         this.logFilePath = logFilePath;
+        this.format = format;
+        this.pool = pool;
+    }
+
+    public static void convertToText(String binaryPath, String textPath) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(binaryPath), StandardOpenOption.READ);
+             BufferedWriter writer = Files.newBufferedWriter(Paths.get(textPath), StandardCharsets.UTF_8)) {
+            BinaryLogReader records = new BinaryLogReader(channel, channel.size());
+            for (long offset = 0; records.readAt(offset); offset = records.next()) {
+                writer.write(records.record().toText());
+                writer.newLine();
+            }
+        }
     }
 
     public void readLogs(LogLevel filterLevel) throws IOException {
-        try (BufferedReader reader = new BufferedReader(new FileReader(logFilePath))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                if (line.startsWith("[" + filterLevel + "]")) {
-                    System.out.println(line);
+        query(filterLevel, Long.MIN_VALUE, Long.MAX_VALUE, System.out::println);
+    }
+
+    public void readLogs(LogLevel filterLevel, long fromMillis, long toMillis) throws IOException {
+        query(filterLevel, fromMillis, toMillis, System.out::println);
+    }
+
+    public void query(LogLevel filterLevel, long fromMillis, long toMillis, Consumer<String> consumer) throws IOException {
+        if (format == LogFormat.BINARY) {
+            queryBinary(filterLevel, fromMillis, toMillis, consumer);
+            return;
+        }
+        Path path = Paths.get(logFilePath);
+        byte[] tag = tag(filterLevel);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long end = channel.size();
+            LogLineReader lines = new LogLineReader(channel, end);
+            boolean indexed = LogIndex.query(path, end, filterLevel, fromMillis, toMillis, new IndexVisitor() {
+                public void record(long offset) throws IOException {
+                    String line = lines.lineAt(offset);
+                    if (line != null) consumer.accept(line);
+                }
+
+                public void gap(long start, long stop) throws IOException {
+                    scan(channel, start, stop, tag, consumer);
                 }
+            });
+            if (!indexed) scan(channel, 0, end, tag, consumer);
+        }
+    }
+
+    public Stream<String> lines(LogLevel filterLevel) throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(logFilePath), StandardOpenOption.READ);
+        Runnable closeChannel = () -> {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
             }
+        };
+        if (format == LogFormat.BINARY) {
+            BinaryLogReader records = new BinaryLogReader(channel, channel.size());
+            Spliterator<String> matches = new Spliterators.AbstractSpliterator<String>(Long.MAX_VALUE,
+                    Spliterator.ORDERED | Spliterator.NONNULL) {
+                private long offset;
+
+                public boolean tryAdvance(Consumer<? super String> action) {
+                    try {
+                        while (records.readAt(offset)) {
+                            offset = records.next();
+                            if (records.level() == filterLevel) {
+                                action.accept(records.record().toText());
+                                return true;
+                            }
+                        }
+                        return false;
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            };
+            return StreamSupport.stream(matches, false).onClose(closeChannel);
+        }
+        ParallelLogScan scan = new ParallelLogScan(channel, 0, Long.MAX_VALUE, tag(filterLevel), pool);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(scan, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(scan::close)
+                .onClose(closeChannel);
+    }
+
+    public LogFollower follow(LogLevel filterLevel, Consumer<String> subscriber, int bufferCapacity) throws IOException {
+        if (format == LogFormat.BINARY) return new LogFollower(Paths.get(logFilePath), filterLevel, subscriber, bufferCapacity);
+        return new LogFollower(Paths.get(logFilePath), tag(filterLevel), subscriber, bufferCapacity);
+    }
+
+    private void queryBinary(LogLevel filterLevel, long fromMillis, long toMillis, Consumer<String> consumer) throws IOException {
+        Path path = Paths.get(logFilePath);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long end = channel.size();
+            BinaryLogReader records = new BinaryLogReader(channel, end);
+            boolean indexed = LogIndex.query(path, end, filterLevel, fromMillis, toMillis, new IndexVisitor() {
+                public void record(long offset) throws IOException {
+                    if (records.readAt(offset) && inRange(records, fromMillis, toMillis)) consumer.accept(records.record().toText());
+                }
+
+                public void gap(long start, long stop) throws IOException {
+                    scanBinary(records, start, stop, filterLevel, fromMillis, toMillis, consumer);
+                }
+            });
+            if (!indexed) scanBinary(records, 0, end, filterLevel, fromMillis, toMillis, consumer);
+        }
+    }
+
+    private static void scanBinary(BinaryLogReader records, long start, long stop, LogLevel filterLevel,
+                                   long fromMillis, long toMillis, Consumer<String> consumer) throws IOException {
+        for (long offset = start; offset < stop && records.readAt(offset); offset = records.next()) {
+            if (records.level() == filterLevel && inRange(records, fromMillis, toMillis)) consumer.accept(records.record().toText());
+        }
+    }
+
+    private static boolean inRange(BinaryLogReader records, long fromMillis, long toMillis) {
+        long millis = Math.floorDiv(records.epochNanos(), 1_000_000L);
+        return millis >= fromMillis && millis <= toMillis;
+    }
+
+    private void scan(FileChannel channel, long start, long stop, byte[] tag, Consumer<String> consumer) throws IOException {
+        ParallelLogScan scan = new ParallelLogScan(channel, start, stop, tag, pool);
+        try {
+            while (scan.hasNext()) consumer.accept(scan.next());
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            scan.close();
         }
     }
+
+    private static byte[] tag(LogLevel level) {
+        return ("[" + level + "]").getBytes(StandardCharsets.US_ASCII);
+    }
 }
 
 class ReportStyle {
@@ -85,26 +1633,454 @@ class ReportStyle {
     }
 }
 
+class ReportWriter implements Flushable, Closeable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int CHAR_BUFFER_SIZE = 8 * 1024;
+    private static final int CHUNK_SIZE = 4 * 1024;
+    private static final ThreadLocal<ByteBuffer> SPARE_BYTES = new ThreadLocal<>();
+    private static final ThreadLocal<StringBuilder> SPARE_CHARS = new ThreadLocal<>();
+    private final Appendable text;
+    private final String lineSeparator;
+    private final WritableByteChannel channel;
+    private final List<ByteBuffer> chunks;
+    private StringBuilder chars;
+    private ByteBuffer bytes;
+    private char pendingHigh;
+    private boolean closed;
+
+    public ReportWriter(Appendable out) {
+        this(out, "\n");
+    }
+
+    public ReportWriter(Appendable out, String lineSeparator) {
+        this.text = out;
+        this.lineSeparator = "\n".equals(lineSeparator) ? null : lineSeparator;
+        this.channel = null;
+        this.chunks = null;
+        if (out instanceof StringBuilder && this.lineSeparator == null) {
+            this.chars = null;
+        } else {
+            StringBuilder spare = SPARE_CHARS.get();
+            SPARE_CHARS.set(null);
+            this.chars = spare != null ? spare : new StringBuilder(CHAR_BUFFER_SIZE);
+        }
+        this.bytes = null;
+    }
+
+    public ReportWriter(WritableByteChannel out) {
+        this.text = null;
+        this.lineSeparator = null;
+        this.channel = out;
+        this.chunks = null;
+        this.chars = null;
+        ByteBuffer spare = SPARE_BYTES.get();
+        SPARE_BYTES.set(null);
+        this.bytes = spare != null ? spare : ByteBuffer.allocate(BUFFER_SIZE);
+    }
+
+    ReportWriter(List<ByteBuffer> chunks) {
+        this.text = null;
+        this.lineSeparator = null;
+        this.channel = null;
+        this.chunks = chunks;
+        this.chars = null;
+        this.bytes = ByteBuffer.allocate(CHUNK_SIZE);
+    }
+
+    public ReportWriter write(CharSequence s) throws IOException {
+        if (s == null) s = "null";
+        return write(s, 0, s.length());
+    }
+
+    public ReportWriter write(CharSequence s, int from, int to) throws IOException {
+        int n = to - from;
+        if (text != null) {
+            if (chars == null) {
+                text.append(s, from, to);
+                return this;
+            }
+            if (chars.length() + n > CHAR_BUFFER_SIZE) flushChars();
+            if (n >= CHAR_BUFFER_SIZE) emit(s, from, to);
+            else chars.append(s, from, to);
+            return this;
+        }
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80 && pendingHigh == 0 && bytes.hasRemaining()) bytes.put((byte) c);
+            else encode(c);
+        }
+        return this;
+    }
+
+    public ReportWriter write(char c) throws IOException {
+        if (text == null) {
+            encode(c);
+            return this;
+        }
+        if (chars == null) {
+            text.append(c);
+            return this;
+        }
+        if (chars.length() == CHAR_BUFFER_SIZE) flushChars();
+        chars.append(c);
+        return this;
+    }
+
+    public ReportWriter writeEncoded(String s, byte[] utf8) throws IOException {
+        if (text != null) return write(s);
+        if (utf8.length == 0) return this;
+        if (pendingHigh != 0) {
+            pendingHigh = 0;
+            encode('?');
+        }
+        if (utf8.length > bytes.remaining()) drain();
+        if (utf8.length <= bytes.remaining()) {
+            bytes.put(utf8);
+        } else if (chunks != null) {
+            chunks.add(ByteBuffer.wrap(utf8).asReadOnlyBuffer());
+        } else {
+            ByteBuffer src = ByteBuffer.wrap(utf8);
+            while (src.hasRemaining()) channel.write(src);
+        }
+        return this;
+    }
+
+    private void encode(char c) throws IOException {
+        if (bytes.remaining() < 4) drain();
+        if (pendingHigh != 0) {
+            char high = pendingHigh;
+            pendingHigh = 0;
+            if (java.lang.Character.isLowSurrogate(c)) {
+                int cp = java.lang.Character.toCodePoint(high, c);
+                bytes.put((byte) (0xF0 | cp >> 18));
+                bytes.put((byte) (0x80 | cp >> 12 & 0x3F));
+                bytes.put((byte) (0x80 | cp >> 6 & 0x3F));
+                bytes.put((byte) (0x80 | cp & 0x3F));
+                return;
+            }
+            bytes.put((byte) '?');
+            if (bytes.remaining() < 4) drain();
+        }
+        if (c < 0x80) {
+            bytes.put((byte) c);
+        } else if (c < 0x800) {
+            bytes.put((byte) (0xC0 | c >> 6));
+            bytes.put((byte) (0x80 | c & 0x3F));
+        } else if (java.lang.Character.isHighSurrogate(c)) {
+            pendingHigh = c;
+        } else if (java.lang.Character.isLowSurrogate(c)) {
+            bytes.put((byte) '?');
+        } else {
+            bytes.put((byte) (0xE0 | c >> 12));
+            bytes.put((byte) (0x80 | c >> 6 & 0x3F));
+            bytes.put((byte) (0x80 | c & 0x3F));
+        }
+    }
+
+    private void drain() throws IOException {
+        bytes.flip();
+        if (chunks != null) {
+            if (bytes.hasRemaining()) chunks.add(bytes);
+            bytes = ByteBuffer.allocate(Math.min(bytes.capacity() * 2, BUFFER_SIZE));
+            return;
+        }
+        while (bytes.hasRemaining()) channel.write(bytes);
+        bytes.clear();
+    }
+
+    private void flushChars() throws IOException {
+        if (chars == null || chars.length() == 0) return;
+        emit(chars, 0, chars.length());
+        chars.setLength(0);
+    }
+
+    private void emit(CharSequence s, int from, int to) throws IOException {
+        if (lineSeparator == null) {
+            text.append(s, from, to);
+            return;
+        }
+        int run = from;
+        for (int i = from; i < to; i++) {
+            if (s.charAt(i) != '\n') continue;
+            text.append(s, run, i).append(lineSeparator);
+            run = i + 1;
+        }
+        text.append(s, run, to);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (text != null) {
+            flushChars();
+            if (text instanceof Flushable) ((Flushable) text).flush();
+            return;
+        }
+        if (pendingHigh != 0) {
+            pendingHigh = 0;
+            if (bytes.remaining() < 1) drain();
+            bytes.put((byte) '?');
+        }
+        drain();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        flush();
+        if (chars != null) {
+            chars.setLength(0);
+            SPARE_CHARS.set(chars);
+        } else if (channel != null) {
+            bytes.clear();
+            SPARE_BYTES.set(bytes);
+        }
+        chars = null;
+        bytes = null;
+    }
+}
+
+class HtmlEscaper {
+    private static final String[] ESCAPES = new String[128];
+    private static final byte[][] ESCAPED_BYTES = new byte[128][];
+
+    static {
+        ESCAPES['&'] = "&amp;";
+        ESCAPES['<'] = "&lt;";
+        ESCAPES['>'] = "&gt;";
+        ESCAPES['"'] = "&quot;";
+        ESCAPES['\''] = "&#39;";
+        for (int c = 0; c < ESCAPES.length; c++) {
+            if (ESCAPES[c] != null) ESCAPED_BYTES[c] = ESCAPES[c].getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    public static void escape(CharSequence s, ReportWriter out) throws IOException {
+        if (s == null) s = "null";
+        int n = s.length();
+        int run = 0;
+        for (int i = firstEscape(s, 0); i >= 0; i = firstEscape(s, run)) {
+            if (i > run) out.write(s, run, i);
+            char c = s.charAt(i);
+            out.writeEncoded(ESCAPES[c], ESCAPED_BYTES[c]);
+            run = i + 1;
+        }
+        if (run < n) out.write(s, run, n);
+    }
+
+    private static int firstEscape(CharSequence s, int from) {
+        for (int i = from, n = s.length(); i < n; i++) {
+            char c = s.charAt(i);
+            if (c < 128 && ESCAPES[c] != null) return i;
+        }
+        return -1;
+    }
+}
+
+class ReportTemplate {
+    private final String[] texts;
+    private final byte[][] encoded;
+    private final int[] slots;
+    private final boolean html;
+
+    private ReportTemplate(List<String> texts, List<Integer> slots, boolean html) {
+        this.html = html;
+        this.texts = texts.toArray(new String[0]);
+        this.encoded = new byte[this.texts.length][];
+        for (int i = 0; i < this.texts.length; i++) {
+            encoded[i] = this.texts[i].getBytes(StandardCharsets.UTF_8);
+        }
+        this.slots = new int[slots.size()];
+        for (int i = 0; i < this.slots.length; i++) {
+            this.slots[i] = slots.get(i);
+        }
+    }
+
+    public static ReportTemplate compile(String layout) {
+        return compile(layout, false);
+    }
+
+    public static ReportTemplate compileHtml(String layout) {
+        return compile(layout, true);
+    }
+
+    private static ReportTemplate compile(String layout, boolean html) {
+        List<String> texts = new ArrayList<>();
+        List<Integer> slots = new ArrayList<>();
+        StringBuilder literal = new StringBuilder();
+        int i = 0;
+        while (i < layout.length()) {
+            char c = layout.charAt(i);
+            int close = c == '{' ? layout.indexOf('}', i) : -1;
+            if (close > i + 1 && isDigits(layout, i + 1, close)) {
+                texts.add(literal.toString());
+                literal.setLength(0);
+                slots.add(Integer.parseInt(layout.substring(i + 1, close)));
+                i = close + 1;
+            } else {
+                literal.append(c);
+                i++;
+            }
+        }
+        texts.add(literal.toString());
+        return new ReportTemplate(texts, slots, html);
+    }
+
+    private static boolean isDigits(String text, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (text.charAt(i) < '0' || text.charAt(i) > '9') return false;
+        }
+        return true;
+    }
+
+    public void render(ReportWriter out, CharSequence... values) throws IOException {
+        for (int i = 0; i < slots.length; i++) {
+            out.writeEncoded(texts[i], encoded[i]);
+            if (html) HtmlEscaper.escape(values[slots[i]], out);
+            else out.write(values[slots[i]]);
+        }
+        out.writeEncoded(texts[slots.length], encoded[slots.length]);
+    }
+}
+
+interface ReportSection {
+    void render(ReportWriter out) throws IOException;
+}
+
 class Report {
-    private String header;
-    private String content;
-    private String footer;
-    private List<String> sections = new ArrayList<>();
+    private static final int GATHER_BATCH = 64;
+    private static final ReportTemplate LINE = ReportTemplate.compile("{0}\n");
+    private static final ReportTemplate SECTION = ReportTemplate.compile("{0}: {1}\n");
+    private static final ReportTemplate EXPORTING = ReportTemplate.compile("Exporting {0} report...\n");
+    private static final ReportTemplate STYLE = ReportTemplate.compile("Style: bg={0}, font={1}, size={2}\n");
+    private ReportSection header = out -> LINE.render(out, (String) null);
+    private ReportSection content = out -> LINE.render(out, (String) null);
+    private ReportSection footer = out -> LINE.render(out, (String) null);
+    private List<ReportSection> sections = new ArrayList<>();
+    private Set<ReportSection> streamedSections = Collections.newSetFromMap(new IdentityHashMap<>());
     private ReportStyle style;
 
-    public void setHeader(String header) { this.header = header; }
-    public void setContent(String content) { this.content = content; }
-    public void setFooter(String footer) { this.footer = footer; }
-    public void addSection(String name, String content) { sections.add(name + ": " + content); }
+    public void setHeader(String header) { this.header = out -> LINE.render(out, header); }
+    public void setHeader(ReportSection header) { this.header = header; }
+    public void setContent(String content) { this.content = out -> LINE.render(out, content); }
+    public void setContent(ReportSection content) { this.content = content; }
+    public void setFooter(String footer) { this.footer = out -> LINE.render(out, footer); }
+    public void setFooter(ReportSection footer) { this.footer = footer; }
+    public void addSection(String name, String content) { sections.add(out -> SECTION.render(out, name, content)); }
+    public void addSection(ReportSection section) { sections.add(section); }
+    public void addStreamedSection(ReportSection section) {
+        sections.add(section);
+        streamedSections.add(section);
+    }
     public void setStyle(ReportStyle style) { this.style = style; }
 
     public void export(String format) {
-        System.out.println("Exporting " + format + " report...");
-        System.out.println("Style: bg=" + style.backgroundColor + ", font=" + style.fontColor + ", size=" + style.fontSize);
-        System.out.println(header);
-        System.out.println(content);
-        for (String s : sections) System.out.println(s);
-        System.out.println(footer);
+        try (ReportWriter writer = new ReportWriter(System.out, System.lineSeparator())) {
+            writeTo(format, writer);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void export(String format, Appendable out) throws IOException {
+        try (ReportWriter writer = new ReportWriter(out)) {
+            writeTo(format, writer);
+        }
+    }
+
+    public void export(String format, WritableByteChannel out) throws IOException {
+        try (ReportWriter writer = new ReportWriter(out)) {
+            writeTo(format, writer);
+        }
+    }
+
+    public void exportParallel(String format, WritableByteChannel out) throws IOException {
+        exportParallel(format, out, ForkJoinPool.commonPool());
+    }
+
+    public void exportParallel(String format, WritableByteChannel out, ForkJoinPool pool) throws IOException {
+        List<ByteBuffer> pending = new ArrayList<>();
+        ReportWriter head = new ReportWriter(pending);
+        writeHead(format, head);
+        head.flush();
+        ArrayDeque<ForkJoinTask<List<ByteBuffer>>> inFlight = new ArrayDeque<>();
+        Iterator<ReportSection> next = sections.iterator();
+        ReportSection streamed = null;
+        try {
+            for (;;) {
+                while (streamed == null && next.hasNext() && inFlight.size() < pool.getParallelism() * 2) {
+                    ReportSection section = next.next();
+                    if (streamedSections.contains(section)) streamed = section;
+                    else inFlight.add(pool.submit(() -> render(section)));
+                }
+                ForkJoinTask<List<ByteBuffer>> task = inFlight.poll();
+                if (task == null) {
+                    if (streamed == null) break;
+                    gather(out, pending);
+                    try (ReportWriter writer = new ReportWriter(out)) {
+                        streamed.render(writer);
+                    }
+                    streamed = null;
+                    continue;
+                }
+                try {
+                    pending.addAll(task.get());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    while (cause.getClass() == RuntimeException.class && cause.getCause() != null) cause = cause.getCause();
+                    if (cause instanceof IOException) throw (IOException) cause;
+                    throw new RuntimeException(cause);
+                }
+                if (pending.size() >= GATHER_BATCH) gather(out, pending);
+            }
+        } finally {
+            for (ForkJoinTask<List<ByteBuffer>> task : inFlight) task.cancel(false);
+        }
+        ReportWriter tail = new ReportWriter(pending);
+        footer.render(tail);
+        tail.flush();
+        gather(out, pending);
+    }
+
+    private static List<ByteBuffer> render(ReportSection section) throws IOException {
+        List<ByteBuffer> chunks = new ArrayList<>();
+        ReportWriter writer = new ReportWriter(chunks);
+        section.render(writer);
+        writer.flush();
+        return chunks;
+    }
+
+    private static void gather(WritableByteChannel out, List<ByteBuffer> buffers) throws IOException {
+        ByteBuffer[] array = buffers.toArray(new ByteBuffer[0]);
+        buffers.clear();
+        if (!(out instanceof GatheringByteChannel)) {
+            for (ByteBuffer buffer : array) {
+                while (buffer.hasRemaining()) out.write(buffer);
+            }
+            return;
+        }
+        GatheringByteChannel gathering = (GatheringByteChannel) out;
+        int first = 0;
+        while (first < array.length) {
+            gathering.write(array, first, array.length - first);
+            while (first < array.length && !array[first].hasRemaining()) first++;
+        }
+    }
+
+    private void writeTo(String format, ReportWriter out) throws IOException {
+        writeHead(format, out);
+        for (ReportSection s : sections) s.render(out);
+        footer.render(out);
+    }
+
+    private void writeHead(String format, ReportWriter out) throws IOException {
+        EXPORTING.render(out, format);
+        if (style != null) STYLE.render(out, style.backgroundColor, style.fontColor, String.valueOf(style.fontSize));
+        header.render(out);
+        content.render(out);
     }
 }
 
@@ -117,24 +2093,56 @@ interface IReportBuilder {
     Report getReport();
 }
 
-class TextReportBuilder implements IReportBuilder {
+interface IStreamingReportBuilder extends IReportBuilder {
+    void addSection(String sectionName, Iterable<? extends CharSequence> rows);
+}
+
+class TextReportBuilder implements IStreamingReportBuilder {
+    private static final ReportTemplate HEADER = ReportTemplate.compile("TEXT HEADER: {0}\n");
+    private static final ReportTemplate CONTENT = ReportTemplate.compile("TEXT CONTENT: {0}\n");
+    private static final ReportTemplate FOOTER = ReportTemplate.compile("TEXT FOOTER: {0}\n");
+    private static final ReportTemplate SECTION = ReportTemplate.compile("{0}: {1}\n");
+    private static final ReportTemplate SECTION_START = ReportTemplate.compile("{0}:\n");
+    private static final ReportTemplate ROW = ReportTemplate.compile("{0}\n");
     private Report report = new Report();
-    public void setHeader(String header) { report.setHeader("TEXT HEADER: " + header); }
-    public void setContent(String content) { report.setContent("TEXT CONTENT: " + content); }
-    public void setFooter(String footer) { report.setFooter("TEXT FOOTER: " + footer); }
-    public void addSection(String name, String content) { report.addSection(name, content); }
+    public void setHeader(String header) { report.setHeader(out -> HEADER.render(out, header)); }
+    public void setContent(String content) { report.setContent(out -> CONTENT.render(out, content)); }
+    public void setFooter(String footer) { report.setFooter(out -> FOOTER.render(out, footer)); }
+    public void addSection(String name, String content) { report.addSection(out -> SECTION.render(out, name, content)); }
     public void setStyle(ReportStyle style) { report.setStyle(style); }
     public Report getReport() { return report; }
+
+    public void addSection(String name, Iterable<? extends CharSequence> rows) {
+        report.addStreamedSection(out -> {
+            SECTION_START.render(out, name);
+            for (CharSequence row : rows) ROW.render(out, row);
+        });
+    }
 }
 
-class HtmlReportBuilder implements IReportBuilder {
+class HtmlReportBuilder implements IStreamingReportBuilder {
+    private static final ReportTemplate HEADER = ReportTemplate.compileHtml("<h1>{0}</h1>\n");
+    private static final ReportTemplate CONTENT = ReportTemplate.compileHtml("<p>{0}</p>\n");
+    private static final ReportTemplate FOOTER = ReportTemplate.compileHtml("<footer>{0}</footer>\n");
+    private static final ReportTemplate SECTION = ReportTemplate.compileHtml("<section>{0}: {1}</section>\n");
+    private static final ReportTemplate SECTION_START = ReportTemplate.compileHtml("<section>{0}:\n");
+    private static final ReportTemplate ROW = ReportTemplate.compileHtml("<p>{0}</p>\n");
+    private static final ReportTemplate SECTION_END = ReportTemplate.compileHtml("</section>\n");
     private Report report = new Report();
-    public void setHeader(String header) { report.setHeader("<h1>" + header + "</h1>"); }
-    public void setContent(String content) { report.setContent("<p>" + content + "</p>"); }
-    public void setFooter(String footer) { report.setFooter("<footer>" + footer + "</footer>"); }
-    public void addSection(String name, String content) { report.addSection("<section>" + name, content + "</section>"); }
+    public void setHeader(String header) { report.setHeader(out -> HEADER.render(out, header)); }
+    public void setContent(String content) { report.setContent(out -> CONTENT.render(out, content)); }
+    public void setFooter(String footer) { report.setFooter(out -> FOOTER.render(out, footer)); }
+    public void addSection(String name, String content) { report.addSection(out -> SECTION.render(out, name, content)); }
     public void setStyle(ReportStyle style) { report.setStyle(style); }
     public Report getReport() { return report; }
+
+    public void addSection(String name, Iterable<? extends CharSequence> rows) {
+        report.addStreamedSection(out -> {
+            SECTION_START.render(out, name);
+            for (CharSequence row : rows) ROW.render(out, row);
+            SECTION_END.render(out);
+        });
+    }
 }
 
 class ReportDirector {
@@ -213,6 +2221,8 @@ public class AllPatternsDemo {
         executor.submit(() -> logger.log("Warning from Thread 2", LogLevel.WARNING));
         executor.submit(() -> logger.log("Error from Thread 3", LogLevel.ERROR));
         executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+        logger.flush();
 
         LogReader reader = new LogReader("app.log");
         System.out.println("\n=== ERROR Logs ===");
@@ -1,13 +1,745 @@
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.Duration;
+import java.time.format.DateTimeParseException;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32C;
+
+class ConfigFileParser {
+    static final String GENERATION = "#generation=";
+    private byte[] scratch = new byte[256];
+
+    public static Map<String, String> parse(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) throw new IOException("Config file too large: " + path);
+            return new ConfigFileParser().parse(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+        }
+    }
+
+    public static Map<String, String> load(Path path) throws IOException {
+        Map<String, String> loaded = parse(path);
+        Path journal = journalPath(path);
+        long generation = generation(path);
+        if (generation >= 0 && generation(journal) == generation) replay(journal, loaded);
+        return loaded;
+    }
+
+    public static Path journalPath(Path path) {
+        return path.resolveSibling(path.getFileName() + ".journal");
+    }
+
+    public static void replay(Path journal, Map<String, String> target) throws IOException {
+        try (FileChannel channel = FileChannel.open(journal, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) throw new IOException("Journal too large: " + journal);
+            ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            int complete = (int) size;
+            while (complete > 0 && buf.get(complete - 1) != '\n') complete--;
+            new ConfigFileParser().parseLines(buf, 0, complete, target, true);
+        }
+    }
+
+    public static long generation(Path path) throws IOException {
+        if (!Files.exists(path)) return -1;
+        ByteBuffer head = ByteBuffer.allocate(GENERATION.length() + 20);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            while (head.hasRemaining() && channel.read(head) > 0) {}
+        }
+        String text = new String(head.array(), 0, head.position(), StandardCharsets.ISO_8859_1);
+        if (!text.startsWith(GENERATION)) return -1;
+        int end = GENERATION.length();
+        while (end < text.length() && Character.isDigit(text.charAt(end))) end++;
+        return end == GENERATION.length() ? -1 : Long.parseLong(text.substring(GENERATION.length(), end));
+    }
+
+    public static String escape(String text, boolean key) {
+        StringBuilder out = null;
+        int last = text.length() - 1;
+        for (int i = 0; i <= last; i++) {
+            char c = text.charAt(i);
+            String replacement = null;
+            if (c == '\\') replacement = "\\\\";
+            else if (c == '\n') replacement = "\\n";
+            else if (c == '\r') replacement = "\\r";
+            else if (c == '\t') replacement = "\\t";
+            else if (c == ' ' && (i == 0 || i == last)) replacement = "\\ ";
+            else if (key && (c == '=' || i == 0 && (c == '#' || c == '!'))) replacement = "\\" + c;
+            if (replacement != null && out == null) out = new StringBuilder(text.length() + 8).append(text, 0, i);
+            if (out != null) {
+                if (replacement != null) out.append(replacement);
+                else out.append(c);
+            }
+        }
+        return out == null ? text : out.toString();
+    }
+
+    public Map<String, String> parse(ByteBuffer buf) {
+        int limit = buf.limit();
+        int lines = 1;
+        for (int i = 0; i < limit; i++) {
+            if (buf.get(i) == '\n') lines++;
+        }
+        Map<String, String> result = new HashMap<>((int) (lines / 0.75f) + 1);
+        int p = limit >= 3 && buf.get(0) == (byte) 0xEF && buf.get(1) == (byte) 0xBB && buf.get(2) == (byte) 0xBF ? 3 : 0;
+        parseLines(buf, p, limit, result, false);
+        return result;
+    }
+
+    private void parseLines(ByteBuffer buf, int p, int limit, Map<String, String> result, boolean journal) {
+        while (p < limit) {
+            int eol = p;
+            while (eol < limit && buf.get(eol) != '\n') eol++;
+            parseLine(buf, p, eol, result, journal);
+            p = eol + 1;
+        }
+    }
+
+    private void parseLine(ByteBuffer buf, int start, int end, Map<String, String> result, boolean journal) {
+        while (start < end && isSpace(buf.get(start))) start++;
+        if (start == end || buf.get(start) == '#' || buf.get(start) == '!') return;
+        int sep = -1;
+        for (int i = start; i < end; i++) {
+            byte b = buf.get(i);
+            if (b == '\\') {
+                i++;
+            } else if (b == '=') {
+                sep = i;
+                break;
+            }
+        }
+        if (sep < 0) {
+            if (journal) result.remove(decode(buf, start, trimEnd(buf, start, end)));
+            return;
+        }
+        int keyEnd = trimEnd(buf, start, sep);
+        int valueStart = sep + 1;
+        while (valueStart < end && isSpace(buf.get(valueStart))) valueStart++;
+        result.put(decode(buf, start, keyEnd), decode(buf, valueStart, trimEnd(buf, valueStart, end)));
+    }
+
+    private static int trimEnd(ByteBuffer buf, int start, int end) {
+        while (end > start && isSpace(buf.get(end - 1))) {
+            int slashes = 0;
+            while (end - 2 - slashes >= start && buf.get(end - 2 - slashes) == '\\') slashes++;
+            if (slashes % 2 == 1) break;
+            end--;
+        }
+        return end;
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\f';
+    }
+
+    private String decode(ByteBuffer buf, int from, int to) {
+        int n = to - from;
+        if (scratch.length < n) scratch = new byte[Math.max(n, scratch.length * 2)];
+        buf.get(from, scratch, 0, n);
+        boolean ascii = true;
+        boolean escaped = false;
+        for (int i = 0; i < n; i++) {
+            byte b = scratch[i];
+            if (b < 0) ascii = false;
+            else if (b == '\\') escaped = true;
+        }
+        if (!escaped) return new String(scratch, 0, n, ascii ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8);
+        return unescape(n);
+    }
+
+    private String unescape(int n) {
+        int w = 0;
+        for (int r = 0; r < n; r++) {
+            byte b = scratch[r];
+            if (b != '\\' || r + 1 == n) {
+                scratch[w++] = b;
+                continue;
+            }
+            byte e = scratch[++r];
+            switch (e) {
+                case 'n': scratch[w++] = '\n'; break;
+                case 't': scratch[w++] = '\t'; break;
+                case 'r': scratch[w++] = '\r'; break;
+                case 'f': scratch[w++] = '\f'; break;
+                case 'u':
+                    int c = r + 4 < n ? hex(r + 1) : -1;
+                    if (c < 0) {
+                        scratch[w++] = e;
+                        break;
+                    }
+                    r += 4;
+                    if (Character.isHighSurrogate((char) c) && r + 6 < n && scratch[r + 1] == '\\' && scratch[r + 2] == 'u') {
+                        int low = hex(r + 3);
+                        if (low >= 0 && Character.isLowSurrogate((char) low)) {
+                            int cp = Character.toCodePoint((char) c, (char) low);
+                            r += 6;
+                            scratch[w++] = (byte) (0xF0 | cp >> 18);
+                            scratch[w++] = (byte) (0x80 | cp >> 12 & 0x3F);
+                            scratch[w++] = (byte) (0x80 | cp >> 6 & 0x3F);
+                            scratch[w++] = (byte) (0x80 | cp & 0x3F);
+                            break;
+                        }
+                    }
+                    if (c < 0x80) {
+                        scratch[w++] = (byte) c;
+                    } else if (c < 0x800) {
+                        scratch[w++] = (byte) (0xC0 | c >> 6);
+                        scratch[w++] = (byte) (0x80 | c & 0x3F);
+                    } else {
+                        scratch[w++] = (byte) (0xE0 | c >> 12);
+                        scratch[w++] = (byte) (0x80 | c >> 6 & 0x3F);
+                        scratch[w++] = (byte) (0x80 | c & 0x3F);
+                    }
+                    break;
+                default: scratch[w++] = e;
+            }
+        }
+        return new String(scratch, 0, w, StandardCharsets.UTF_8);
+    }
+
+    private int hex(int at) {
+        int value = 0;
+        for (int i = at; i < at + 4; i++) {
+            int digit = Character.digit(scratch[i], 16);
+            if (digit < 0) return -1;
+            value = value << 4 | digit;
+        }
+        return value;
+    }
+}
+
+class ConfigKey {
+    private static final Map<String, ConfigKey> REGISTRY = new ConcurrentHashMap<>();
+    private static volatile ConfigKey[] registered = new ConfigKey[64];
+    private static volatile int registeredCount;
+
+    private final String name;
+    private final int id;
+
+    private ConfigKey(String name, int id) {
+        this.name = name;
+        this.id = id;
+    }
+
+    public static ConfigKey of(String name) {
+        ConfigKey key = REGISTRY.get(name);
+        if (key != null) return key;
+        synchronized (REGISTRY) {
+            key = REGISTRY.get(name);
+            if (key == null) {
+                int id = registeredCount;
+                if (id == registered.length) registered = Arrays.copyOf(registered, id * 2);
+                key = new ConfigKey(name, id);
+                registered[id] = key;
+                REGISTRY.put(name, key);
+                registeredCount = id + 1;
+            }
+            return key;
+        }
+    }
+
+    static String[] denseValues(Map<String, String> values) {
+        int count = registeredCount;
+        ConfigKey[] keys = registered;
+        String[] dense = new String[count];
+        for (int i = 0; i < count; i++) {
+            dense[i] = values.get(keys[i].name);
+        }
+        return dense;
+    }
+
+    public String name() { return name; }
+    public int id() { return id; }
+
+    @Override
+    public String toString() { return name; }
+}
+
+class ConfigSnapshot {
+    private final Map<String, String> values;
+    private final long version;
+    private final String[] dense;
+    private final String[] sortedKeys;
+    private final ConcurrentHashMap<String, Integer> ints = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Long> longs = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Boolean> booleans = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Duration> durations = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Long> sizes = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Enum<?>> enums = new ConcurrentHashMap<>();
+
+    ConfigSnapshot(Map<String, String> values, long version, String[] sortedKeys) {
+        this.values = values;
+        this.version = version;
+        this.sortedKeys = sortedKeys;
+        dense = ConfigKey.denseValues(values);
+    }
+
+    public long getVersion() { return version; }
+    public int size() { return values.size(); }
+    public String get(String key) { return values.get(key); }
+    public String get(String key, String defaultValue) { return values.getOrDefault(key, defaultValue); }
+
+    public String get(ConfigKey key) {
+        int id = key.id();
+        return id < dense.length ? dense[id] : values.get(key.name());
+    }
+
+    public String get(ConfigKey key, String defaultValue) {
+        String value = get(key);
+        return value == null ? defaultValue : value;
+    }
+
+    public Map<String, String> asMap() { return Collections.unmodifiableMap(values); }
+
+    ConfigSnapshot next(Map<String, String> nextValues, ConfigDiff diff) {
+        String[] sorted = sortedKeys;
+        if (!diff.added().isEmpty() || !diff.removed().isEmpty()) sorted = mergeKeys(sorted, diff.added(), diff.removed());
+        return new ConfigSnapshot(nextValues, version + 1, sorted);
+    }
+
+    private static String[] mergeKeys(String[] sorted, Set<String> added, Set<String> removed) {
+        String[] add = added.toArray(new String[0]);
+        Arrays.sort(add);
+        String[] merged = new String[sorted.length + add.length - removed.size()];
+        int i = 0;
+        int j = 0;
+        int w = 0;
+        while (i < sorted.length || j < add.length) {
+            if (j == add.length || i < sorted.length && sorted[i].compareTo(add[j]) < 0) {
+                String key = sorted[i++];
+                if (!removed.contains(key)) merged[w++] = key;
+            } else {
+                merged[w++] = add[j++];
+            }
+        }
+        return merged;
+    }
+
+    public List<String> keysWithPrefix(String prefix) {
+        int from = Arrays.binarySearch(sortedKeys, prefix);
+        if (from < 0) from = -from - 1;
+        int to = from;
+        while (to < sortedKeys.length && sortedKeys[to].startsWith(prefix)) to++;
+        return Collections.unmodifiableList(Arrays.asList(sortedKeys).subList(from, to));
+    }
+
+    public Map<String, String> withPrefix(String prefix) {
+        Map<String, String> result = new LinkedHashMap<>();
+        for (String key : keysWithPrefix(prefix)) {
+            result.put(key, values.get(key));
+        }
+        return result;
+    }
+
+    public int getInt(String key, int defaultValue) {
+        Integer cached = ints.get(key);
+        if (cached != null) return cached;
+        String raw = values.get(key);
+        if (raw == null) return defaultValue;
+        try {
+            return ints.computeIfAbsent(key, k -> Integer.valueOf(raw.trim()));
+        } catch (NumberFormatException e) {
+            throw invalid("int", key, raw);
+        }
+    }
+
+    public long getLong(String key, long defaultValue) {
+        Long cached = longs.get(key);
+        if (cached != null) return cached;
+        String raw = values.get(key);
+        if (raw == null) return defaultValue;
+        try {
+            return longs.computeIfAbsent(key, k -> Long.valueOf(raw.trim()));
+        } catch (NumberFormatException e) {
+            throw invalid("long", key, raw);
+        }
+    }
+
+    public boolean getBoolean(String key, boolean defaultValue) {
+        Boolean cached = booleans.get(key);
+        if (cached != null) return cached;
+        String raw = values.get(key);
+        if (raw == null) return defaultValue;
+        return booleans.computeIfAbsent(key, k -> parseBoolean(k, raw));
+    }
+
+    public Duration getDuration(String key, Duration defaultValue) {
+        Duration cached = durations.get(key);
+        if (cached != null) return cached;
+        String raw = values.get(key);
+        if (raw == null) return defaultValue;
+        return durations.computeIfAbsent(key, k -> parseDuration(k, raw));
+    }
+
+    public long getBytes(String key, long defaultValue) {
+        Long cached = sizes.get(key);
+        if (cached != null) return cached;
+        String raw = values.get(key);
+        if (raw == null) return defaultValue;
+        return sizes.computeIfAbsent(key, k -> parseBytes(k, raw));
+    }
+
+    public <E extends Enum<E>> E getEnum(String key, Class<E> type, E defaultValue) {
+        Enum<?> cached = enums.get(key);
+        if (cached != null && cached.getDeclaringClass() == type) return type.cast(cached);
+        String raw = values.get(key);
+        if (raw == null) return defaultValue;
+        E parsed;
+        try {
+            parsed = Enum.valueOf(type, raw.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw invalid(type.getSimpleName(), key, raw);
+        }
+        if (cached == null) enums.putIfAbsent(key, parsed);
+        return parsed;
+    }
+
+    private static boolean parseBoolean(String key, String raw) {
+        switch (raw.trim().toLowerCase(Locale.ROOT)) {
+            case "true": case "yes": case "on": case "1": return true;
+            case "false": case "no": case "off": case "0": return false;
+            default: throw invalid("boolean", key, raw);
+        }
+    }
+
+    private static Duration parseDuration(String key, String raw) {
+        String text = raw.trim().toLowerCase(Locale.ROOT);
+        try {
+            if (text.startsWith("p")) return Duration.parse(text.toUpperCase(Locale.ROOT));
+            int unitAt = unitStart(text);
+            long amount = Long.parseLong(text.substring(0, unitAt).trim());
+            switch (text.substring(unitAt).trim()) {
+                case "ns": return Duration.ofNanos(amount);
+                case "us": return Duration.ofNanos(Math.multiplyExact(amount, 1000L));
+                case "": case "ms": return Duration.ofMillis(amount);
+                case "s": return Duration.ofSeconds(amount);
+                case "m": return Duration.ofMinutes(amount);
+                case "h": return Duration.ofHours(amount);
+                case "d": return Duration.ofDays(amount);
+                default: throw invalid("duration", key, raw);
+            }
+        } catch (ArithmeticException | DateTimeParseException | NumberFormatException e) {
+            throw invalid("duration", key, raw);
+        }
+    }
+
+    private static long parseBytes(String key, String raw) {
+        String text = raw.trim().toUpperCase(Locale.ROOT);
+        int unitAt = unitStart(text);
+        long amount;
+        try {
+            amount = Long.parseLong(text.substring(0, unitAt).trim());
+        } catch (NumberFormatException e) {
+            throw invalid("size", key, raw);
+        }
+        int shift;
+        switch (text.substring(unitAt).trim()) {
+            case "": case "B": shift = 0; break;
+            case "K": case "KB": shift = 10; break;
+            case "M": case "MB": shift = 20; break;
+            case "G": case "GB": shift = 30; break;
+            case "T": case "TB": shift = 40; break;
+            default: throw invalid("size", key, raw);
+        }
+        if (amount < 0 || amount > Long.MAX_VALUE >> shift) throw invalid("size", key, raw);
+        return amount << shift;
+    }
+
+    private static int unitStart(String text) {
+        int i = 0;
+        if (i < text.length() && (text.charAt(i) == '-' || text.charAt(i) == '+')) i++;
+        while (i < text.length() && Character.isDigit(text.charAt(i))) i++;
+        return i;
+    }
+
+    private static IllegalArgumentException invalid(String type, String key, String raw) {
+        return new IllegalArgumentException("Invalid " + type + " for '" + key + "': " + raw);
+    }
+}
+
+interface ConfigChangeListener {
+    void onChange(ConfigDiff diff);
+}
+
+class ConfigDiff {
+    private final Map<String, String> oldValues = new HashMap<>();
+    private final Map<String, String> newValues = new HashMap<>();
+    private final Set<String> added = new HashSet<>();
+    private final Set<String> changed = new HashSet<>();
+    private final Set<String> removed = new HashSet<>();
+
+    public static ConfigDiff between(Map<String, String> before, Map<String, String> after) {
+        ConfigDiff diff = new ConfigDiff();
+        for (Map.Entry<String, String> entry : after.entrySet()) {
+            diff.record(entry.getKey(), before.get(entry.getKey()), entry.getValue());
+        }
+        for (Map.Entry<String, String> entry : before.entrySet()) {
+            if (!after.containsKey(entry.getKey())) diff.record(entry.getKey(), entry.getValue(), null);
+        }
+        return diff;
+    }
+
+    public static ConfigDiff merge(ConfigDiff first, ConfigDiff second) {
+        ConfigDiff diff = new ConfigDiff();
+        for (String key : first.keys()) {
+            diff.record(key, first.oldValue(key), second.contains(key) ? second.newValue(key) : first.newValue(key));
+        }
+        for (String key : second.keys()) {
+            if (!first.contains(key)) diff.record(key, second.oldValue(key), second.newValue(key));
+        }
+        return diff;
+    }
+
+    private void record(String key, String oldValue, String newValue) {
+        if (Objects.equals(oldValue, newValue)) return;
+        if (oldValue == null) added.add(key);
+        else if (newValue == null) removed.add(key);
+        else changed.add(key);
+        if (oldValue != null) oldValues.put(key, oldValue);
+        if (newValue != null) newValues.put(key, newValue);
+    }
+
+    public ConfigDiff forKey(String key) {
+        ConfigDiff diff = new ConfigDiff();
+        if (contains(key)) diff.record(key, oldValue(key), newValue(key));
+        return diff;
+    }
+
+    public ConfigDiff forPrefix(String prefix) {
+        if (prefix.isEmpty()) return this;
+        ConfigDiff diff = new ConfigDiff();
+        for (String key : keys()) {
+            if (key.startsWith(prefix)) diff.record(key, oldValue(key), newValue(key));
+        }
+        return diff;
+    }
+
+    public Set<String> keys() {
+        Set<String> keys = new HashSet<>(added);
+        keys.addAll(changed);
+        keys.addAll(removed);
+        return keys;
+    }
+
+    public boolean contains(String key) { return added.contains(key) || changed.contains(key) || removed.contains(key); }
+    public Set<String> added() { return Collections.unmodifiableSet(added); }
+    public Set<String> changed() { return Collections.unmodifiableSet(changed); }
+    public Set<String> removed() { return Collections.unmodifiableSet(removed); }
+    public String oldValue(String key) { return oldValues.get(key); }
+    public String newValue(String key) { return newValues.get(key); }
+    public boolean isEmpty() { return added.isEmpty() && changed.isEmpty() && removed.isEmpty(); }
+
+    @Override
+    public String toString() {
+        return "added=" + added + ", changed=" + changed + ", removed=" + removed;
+    }
+}
+
+class ConfigSubscription implements Closeable {
+    private final ConfigurationManager manager;
+    private final String key;
+    private final boolean prefix;
+    private final ConfigChangeListener listener;
+    private ConfigDiff pending;
+    private volatile boolean cancelled;
+
+    ConfigSubscription(ConfigurationManager manager, String key, boolean prefix, ConfigChangeListener listener) {
+        this.manager = manager;
+        this.key = key;
+        this.prefix = prefix;
+        this.listener = listener;
+    }
+
+    public String getKey() { return key; }
+    public boolean isPrefix() { return prefix; }
+    ConfigChangeListener listener() { return listener; }
+
+    void offer(ConfigDiff diff, Executor executor) {
+        ConfigDiff relevant = prefix ? diff.forPrefix(key) : diff.forKey(key);
+        if (relevant.isEmpty() || cancelled) return;
+        boolean schedule;
+        synchronized (this) {
+            schedule = pending == null;
+            pending = schedule ? relevant : ConfigDiff.merge(pending, relevant);
+        }
+        if (schedule) executor.execute(this::deliver);
+    }
+
+    private void deliver() {
+        ConfigDiff diff;
+        synchronized (this) {
+            diff = pending;
+            pending = null;
+        }
+        if (cancelled || diff == null || diff.isEmpty()) return;
+        try {
+            listener.onChange(diff);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void close() {
+        cancelled = true;
+        manager.unsubscribe(this);
+    }
+}
+
+interface ConfigSource {
+    String name();
+    Map<String, String> load() throws IOException;
+}
+
+class MapConfigSource implements ConfigSource {
+    private final String name;
+    private final Map<String, String> values;
+
+    public MapConfigSource(String name, Map<String, String> values) {
+        this.name = name;
+        this.values = new HashMap<>(values);
+    }
+
+    public String name() { return name; }
+    public Map<String, String> load() { return values; }
+}
+
+class FileConfigSource implements ConfigSource {
+    private final Path path;
+
+    public FileConfigSource(String filename) {
+        this.path = Paths.get(filename);
+    }
+
+    public String name() { return "file:" + path; }
+
+    public Map<String, String> load() throws IOException {
+        return Files.exists(path) ? ConfigFileParser.load(path) : Collections.emptyMap();
+    }
+}
+
+class EnvironmentConfigSource implements ConfigSource {
+    private final String prefix;
+
+    public EnvironmentConfigSource(String prefix) {
+        this.prefix = prefix;
+    }
+
+    public String name() { return "env:" + prefix; }
+
+    public Map<String, String> load() {
+        Map<String, String> values = new HashMap<>();
+        for (Map.Entry<String, String> entry : System.getenv().entrySet()) {
+            String name = entry.getKey();
+            if (!name.startsWith(prefix) || name.length() == prefix.length()) continue;
+            values.put(name.substring(prefix.length()).toLowerCase(Locale.ROOT).replace('_', '.'), entry.getValue());
+        }
+        return values;
+    }
+}
+
+class SystemPropertiesConfigSource implements ConfigSource {
+    private final String prefix;
+
+    public SystemPropertiesConfigSource(String prefix) {
+        this.prefix = prefix;
+    }
+
+    public String name() { return "sys:" + prefix; }
+
+    public Map<String, String> load() {
+        Map<String, String> values = new HashMap<>();
+        Properties properties = System.getProperties();
+        for (String name : properties.stringPropertyNames()) {
+            if (name.startsWith(prefix) && name.length() > prefix.length()) {
+                values.put(name.substring(prefix.length()), properties.getProperty(name));
+            }
+        }
+        return values;
+    }
+}
+
+class ConfigView {
+    private final ConfigurationManager manager;
+    private final String prefix;
+
+    ConfigView(ConfigurationManager manager, String namespace) {
+        this.manager = manager;
+        this.prefix = namespace.isEmpty() || namespace.endsWith(".") ? namespace : namespace + ".";
+    }
+
+    public String getPrefix() { return prefix; }
+    public String get(String key) { return manager.snapshot().get(prefix + key); }
+    public String get(String key, String defaultValue) { return manager.snapshot().get(prefix + key, defaultValue); }
+    public int getInt(String key, int defaultValue) { return manager.snapshot().getInt(prefix + key, defaultValue); }
+    public long getLong(String key, long defaultValue) { return manager.snapshot().getLong(prefix + key, defaultValue); }
+    public boolean getBoolean(String key, boolean defaultValue) { return manager.snapshot().getBoolean(prefix + key, defaultValue); }
+    public Duration getDuration(String key, Duration defaultValue) { return manager.snapshot().getDuration(prefix + key, defaultValue); }
+    public long getBytes(String key, long defaultValue) { return manager.snapshot().getBytes(prefix + key, defaultValue); }
+    public ConfigView subset(String namespace) { return new ConfigView(manager, prefix + namespace); }
+
+    public <E extends Enum<E>> E getEnum(String key, Class<E> type, E defaultValue) {
+        return manager.snapshot().getEnum(prefix + key, type, defaultValue);
+    }
+
+    public List<String> keys() {
+        List<String> full = manager.snapshot().keysWithPrefix(prefix);
+        List<String> keys = new ArrayList<>(full.size());
+        for (String key : full) {
+            keys.add(key.substring(prefix.length()));
+        }
+        return keys;
+    }
+
+    public Map<String, String> asMap() {
+        ConfigSnapshot current = manager.snapshot();
+        Map<String, String> result = new LinkedHashMap<>();
+        for (String key : current.keysWithPrefix(prefix)) {
+            result.put(key.substring(prefix.length()), current.get(key));
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return prefix + asMap();
+    }
+}
 
 class ConfigurationManager {
     private static volatile ConfigurationManager instance;
-    private Map<String, String> settings;
+    private volatile ConfigSnapshot snapshot = new ConfigSnapshot(new HashMap<>(), 0, new String[0]);
+    private final Object writeLock = new Object();
+    private final Object saveLock = new Object();
+    private final List<ConfigSource> sources = new ArrayList<>();
+    private Map<String, String> sourceValues = Collections.emptyMap();
+    private Map<String, String> runtime = Collections.emptyMap();
+    private final Map<Path, Set<String>> dirty = new HashMap<>();
+    private final Set<String> compacting = ConcurrentHashMap.newKeySet();
+    private static final long JOURNAL_COMPACT_BYTES = 64 * 1024;
+    private static final long RELOAD_DEBOUNCE_MILLIS = 100;
+    private final List<ConfigSubscription> subscriptions = new CopyOnWriteArrayList<>();
+    private WatchService fileWatcher;
+    private Map<String, String> watchedContent = Collections.emptyMap();
+    private long watchedHash = -1;
+    private static final ExecutorService NOTIFIER = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "config-notify");
+        t.setDaemon(true);
+        return t;
+    });
+    private static final ExecutorService COMPACTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "config-compact");
+        t.setDaemon(true);
+        return t;
+    });
 
-    private ConfigurationManager() {
-        settings = new HashMap<>();
-    }
+    private ConfigurationManager() {}
 
     public static ConfigurationManager getInstance() {
         if (instance == null) {
@@ -20,48 +752,667 @@ class ConfigurationManager {
         return instance;
     }
 
+    public ConfigSnapshot snapshot() {
+        return snapshot;
+    }
+
+    public long getVersion() {
+        return snapshot.getVersion();
+    }
+
     public void setSetting(String key, String value) {
-        settings.put(key, value);
+        synchronized (writeLock) {
+            if (Objects.equals(runtime.get(key), value)) return;
+            Map<String, String> next = new HashMap<>(runtime);
+            if (value == null) next.remove(key);
+            else next.put(key, value);
+            publish(next);
+        }
     }
 
     public String getSetting(String key) {
-        return settings.getOrDefault(key, "Не найдено");
+        return snapshot.get(key, "Не найдено");
+    }
+
+    public String getSetting(ConfigKey key) {
+        return snapshot.get(key, "Не найдено");
+    }
+
+    public Map<String, String> getSettingsWithPrefix(String prefix) {
+        return snapshot.withPrefix(prefix);
+    }
+
+    public ConfigView subset(String namespace) {
+        return new ConfigView(this, namespace);
+    }
+
+    public int getInt(String key, int defaultValue) { return snapshot.getInt(key, defaultValue); }
+    public long getLong(String key, long defaultValue) { return snapshot.getLong(key, defaultValue); }
+    public boolean getBoolean(String key, boolean defaultValue) { return snapshot.getBoolean(key, defaultValue); }
+    public Duration getDuration(String key, Duration defaultValue) { return snapshot.getDuration(key, defaultValue); }
+    public long getBytes(String key, long defaultValue) { return snapshot.getBytes(key, defaultValue); }
+
+    public <E extends Enum<E>> E getEnum(String key, Class<E> type, E defaultValue) {
+        return snapshot.getEnum(key, type, defaultValue);
     }
 
     public void loadFromFile(String filename) throws IOException {
-        try (BufferedReader reader = new BufferedReader(new FileReader(filename))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                String[] parts = line.split("=");
-                if (parts.length == 2) {
-                    settings.put(parts[0].trim(), parts[1].trim());
+        Map<String, String> loaded = ConfigFileParser.load(Paths.get(filename));
+        synchronized (writeLock) {
+            Map<String, String> next = new HashMap<>(runtime);
+            next.putAll(loaded);
+            publish(next);
+        }
+    }
+
+    public void addSource(ConfigSource source) throws IOException {
+        synchronized (saveLock) {
+            synchronized (writeLock) {
+                sources.add(source);
+            }
+            reloadSources();
+        }
+    }
+
+    public List<ConfigSource> getSources() {
+        synchronized (writeLock) {
+            return new ArrayList<>(sources);
+        }
+    }
+
+    public void reloadSources() throws IOException {
+        synchronized (saveLock) {
+            Map<String, String> merged = new HashMap<>();
+            for (ConfigSource source : getSources()) {
+                merged.putAll(source.load());
+            }
+            synchronized (writeLock) {
+                sourceValues = merged;
+                publish(runtime);
+            }
+        }
+    }
+
+    public ConfigSubscription subscribe(String key, ConfigChangeListener listener) {
+        ConfigSubscription subscription = new ConfigSubscription(this, key, false, listener);
+        subscriptions.add(subscription);
+        return subscription;
+    }
+
+    public ConfigSubscription subscribePrefix(String prefix, ConfigChangeListener listener) {
+        ConfigSubscription subscription = new ConfigSubscription(this, prefix, true, listener);
+        subscriptions.add(subscription);
+        return subscription;
+    }
+
+    void unsubscribe(ConfigSubscription subscription) {
+        subscriptions.remove(subscription);
+    }
+
+    public void addListener(ConfigChangeListener listener) {
+        subscribePrefix("", listener);
+    }
+
+    public void removeListener(ConfigChangeListener listener) {
+        for (ConfigSubscription subscription : subscriptions) {
+            if (subscription.listener() == listener) subscription.close();
+        }
+    }
+
+    public void watchFile(String filename) throws IOException {
+        Path path = Paths.get(filename).toAbsolutePath();
+        WatchService watcher = path.getFileSystem().newWatchService();
+        path.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+                StandardWatchEventKinds.ENTRY_DELETE);
+        synchronized (saveLock) {
+            stopWatching();
+            fileWatcher = watcher;
+            watchedContent = Collections.emptyMap();
+            watchedHash = -1;
+            reloadIfChanged(path);
+        }
+        Thread thread = new Thread(() -> watchLoop(watcher, path), "config-watch");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stopWatching() throws IOException {
+        synchronized (saveLock) {
+            if (fileWatcher != null) fileWatcher.close();
+            fileWatcher = null;
+        }
+    }
+
+    private void watchLoop(WatchService watcher, Path path) {
+        Path journalName = ConfigFileParser.journalPath(path).getFileName();
+        try {
+            for (;;) {
+                WatchKey key = watcher.take();
+                boolean changed = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (path.getFileName().equals(event.context()) || journalName.equals(event.context())) changed = true;
+                }
+                key.reset();
+                if (!changed) continue;
+                Thread.sleep(RELOAD_DEBOUNCE_MILLIS);
+                while ((key = watcher.poll()) != null) {
+                    key.pollEvents();
+                    key.reset();
                 }
+                synchronized (saveLock) {
+                    if (fileWatcher != watcher) return;
+                    try {
+                        reloadIfChanged(path);
+                    } catch (IOException | RuntimeException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void reloadIfChanged(Path path) throws IOException {
+        long hash = contentHash(path);
+        if (hash == watchedHash) return;
+        Map<String, String> loaded = ConfigFileParser.load(path);
+        synchronized (writeLock) {
+            Map<String, String> next = new HashMap<>(runtime);
+            for (String key : watchedContent.keySet()) {
+                if (!loaded.containsKey(key)) next.remove(key);
+            }
+            next.putAll(loaded);
+            publish(next);
+        }
+        watchedContent = loaded;
+        watchedHash = hash;
+    }
+
+    private static long contentHash(Path path) throws IOException {
+        CRC32C crc = new CRC32C();
+        for (Path file : new Path[] {path, ConfigFileParser.journalPath(path)}) {
+            if (!Files.exists(file)) continue;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                crc.update(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
             }
+            crc.update('\n');
+        }
+        return crc.getValue();
+    }
+
+    private void publish(Map<String, String> nextRuntime) {
+        Map<String, String> effective = new HashMap<>((int) ((sourceValues.size() + nextRuntime.size()) / 0.75f) + 1);
+        effective.putAll(sourceValues);
+        effective.putAll(nextRuntime);
+        markDirty(runtime, nextRuntime);
+        runtime = nextRuntime;
+        ConfigDiff diff = ConfigDiff.between(snapshot.asMap(), effective);
+        if (diff.isEmpty()) return;
+        snapshot = snapshot.next(effective, diff);
+        for (ConfigSubscription subscription : subscriptions) {
+            subscription.offer(diff, NOTIFIER);
         }
     }
 
     public void saveToFile(String filename) throws IOException {
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(filename))) {
-            for (Map.Entry<String, String> entry : settings.entrySet()) {
-                writer.write(entry.getKey() + "=" + entry.getValue());
-                writer.newLine();
+        Path path = Paths.get(filename);
+        Path target = path.toAbsolutePath().normalize();
+        synchronized (saveLock) {
+            Map<String, String> current;
+            synchronized (writeLock) {
+                dirty.put(target, new HashSet<>());
+                current = runtime;
+            }
+            try {
+                long generation = Math.max(ConfigFileParser.generation(path), 0) + 1;
+                StringBuilder out = new StringBuilder(32 + current.size() * 32);
+                out.append(ConfigFileParser.GENERATION).append(generation).append('\n');
+                for (Map.Entry<String, String> entry : current.entrySet()) {
+                    appendEntry(out, entry.getKey(), entry.getValue());
+                }
+                Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+                try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    writeFully(channel, out);
+                }
+                Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                Files.deleteIfExists(ConfigFileParser.journalPath(path));
+            } catch (IOException | RuntimeException e) {
+                forgetDirty(target);
+                throw e;
             }
         }
     }
+
+    public void saveChanges(String filename) throws IOException {
+        Path path = Paths.get(filename);
+        Path target = path.toAbsolutePath().normalize();
+        long journalSize;
+        synchronized (saveLock) {
+            long generation = ConfigFileParser.generation(path);
+            if (generation < 0) {
+                saveToFile(filename);
+                return;
+            }
+            boolean tracked;
+            synchronized (writeLock) {
+                tracked = dirty.containsKey(target);
+            }
+            Map<String, String> saved = tracked ? null : ConfigFileParser.load(path);
+            Set<String> changed = new HashSet<>();
+            Map<String, String> current;
+            synchronized (writeLock) {
+                Set<String> keys = dirty.put(target, new HashSet<>());
+                if (keys != null) changed.addAll(keys);
+                current = runtime;
+            }
+            if (saved != null) changed.addAll(ConfigDiff.between(saved, current).keys());
+            if (changed.isEmpty()) return;
+            Path journal = ConfigFileParser.journalPath(path);
+            try {
+                boolean fresh = ConfigFileParser.generation(journal) != generation;
+                StringBuilder out = new StringBuilder(32 + changed.size() * 32);
+                if (fresh) out.append(ConfigFileParser.GENERATION).append(generation).append('\n');
+                for (String key : changed) {
+                    appendEntry(out, key, current.get(key));
+                }
+                try (FileChannel channel = FileChannel.open(journal, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        fresh ? StandardOpenOption.TRUNCATE_EXISTING : StandardOpenOption.APPEND)) {
+                    writeFully(channel, out);
+                    journalSize = channel.size();
+                }
+            } catch (IOException | RuntimeException e) {
+                restoreDirty(target, changed);
+                throw e;
+            }
+        }
+        if (journalSize > Math.max(JOURNAL_COMPACT_BYTES, Files.size(path)) && compacting.add(filename)) {
+            COMPACTOR.execute(() -> {
+                try {
+                    compacting.remove(filename);
+                    saveToFile(filename);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+        }
+    }
+
+    private void restoreDirty(Path target, Set<String> keys) {
+        synchronized (writeLock) {
+            Set<String> pending = dirty.get(target);
+            if (pending != null) pending.addAll(keys);
+        }
+    }
+
+    private void forgetDirty(Path target) {
+        synchronized (writeLock) {
+            dirty.remove(target);
+        }
+    }
+
+    private void markDirty(Map<String, String> before, Map<String, String> after) {
+        if (dirty.isEmpty() || before == after) return;
+        List<String> changed = new ArrayList<>();
+        for (Map.Entry<String, String> entry : after.entrySet()) {
+            if (!entry.getValue().equals(before.get(entry.getKey()))) changed.add(entry.getKey());
+        }
+        for (String key : before.keySet()) {
+            if (!after.containsKey(key)) changed.add(key);
+        }
+        for (Set<String> keys : dirty.values()) {
+            keys.addAll(changed);
+        }
+    }
+
+    private static void appendEntry(StringBuilder out, String key, String value) {
+        out.append(ConfigFileParser.escape(key, true));
+        if (value != null) out.append('=').append(ConfigFileParser.escape(value, false));
+        out.append('\n');
+    }
+
+    private static void writeFully(FileChannel channel, StringBuilder out) throws IOException {
+        ByteBuffer buf = StandardCharsets.UTF_8.encode(CharBuffer.wrap(out));
+        while (buf.hasRemaining()) channel.write(buf);
+        channel.force(false);
+    }
+}
+
+class ReportWriter implements Flushable, Closeable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int CHAR_BUFFER_SIZE = 8 * 1024;
+    private static final ThreadLocal<ByteBuffer> SPARE_BYTES = new ThreadLocal<>();
+    private static final ThreadLocal<StringBuilder> SPARE_CHARS = new ThreadLocal<>();
+    private final Appendable text;
+    private final String lineSeparator;
+    private final WritableByteChannel channel;
+    private StringBuilder chars;
+    private ByteBuffer bytes;
+    private char pendingHigh;
+    private boolean closed;
+
+    public ReportWriter(Appendable out) {
+        this(out, "\n");
+    }
+
+    public ReportWriter(Appendable out, String lineSeparator) {
+        this.text = out;
+        this.lineSeparator = "\n".equals(lineSeparator) ? null : lineSeparator;
+        this.channel = null;
+        if (out instanceof StringBuilder && this.lineSeparator == null) {
+            this.chars = null;
+        } else {
+            StringBuilder spare = SPARE_CHARS.get();
+            SPARE_CHARS.set(null);
+            this.chars = spare != null ? spare : new StringBuilder(CHAR_BUFFER_SIZE);
+        }
+        this.bytes = null;
+    }
+
+    public ReportWriter(WritableByteChannel out) {
+        this.text = null;
+        this.lineSeparator = null;
+        this.channel = out;
+        this.chars = null;
+        ByteBuffer spare = SPARE_BYTES.get();
+        SPARE_BYTES.set(null);
+        this.bytes = spare != null ? spare : ByteBuffer.allocate(BUFFER_SIZE);
+    }
+
+    public ReportWriter write(CharSequence s) throws IOException {
+        if (s == null) s = "null";
+        return write(s, 0, s.length());
+    }
+
+    public ReportWriter write(CharSequence s, int from, int to) throws IOException {
+        int n = to - from;
+        if (text != null) {
+            if (chars == null) {
+                text.append(s, from, to);
+                return this;
+            }
+            if (chars.length() + n > CHAR_BUFFER_SIZE) flushChars();
+            if (n >= CHAR_BUFFER_SIZE) emit(s, from, to);
+            else chars.append(s, from, to);
+            return this;
+        }
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80 && pendingHigh == 0 && bytes.hasRemaining()) bytes.put((byte) c);
+            else encode(c);
+        }
+        return this;
+    }
+
+    public ReportWriter write(char c) throws IOException {
+        if (text == null) {
+            encode(c);
+            return this;
+        }
+        if (chars == null) {
+            text.append(c);
+            return this;
+        }
+        if (chars.length() == CHAR_BUFFER_SIZE) flushChars();
+        chars.append(c);
+        return this;
+    }
+
+    public ReportWriter writeEncoded(String s, byte[] utf8) throws IOException {
+        if (text != null) return write(s);
+        if (utf8.length == 0) return this;
+        if (pendingHigh != 0) {
+            pendingHigh = 0;
+            encode('?');
+        }
+        if (utf8.length > bytes.remaining()) drain();
+        if (utf8.length <= bytes.remaining()) {
+            bytes.put(utf8);
+        } else {
+            ByteBuffer src = ByteBuffer.wrap(utf8);
+            while (src.hasRemaining()) channel.write(src);
+        }
+        return this;
+    }
+
+    private void encode(char c) throws IOException {
+        if (bytes.remaining() < 4) drain();
+        if (pendingHigh != 0) {
+            char high = pendingHigh;
+            pendingHigh = 0;
+            if (Character.isLowSurrogate(c)) {
+                int cp = Character.toCodePoint(high, c);
+                bytes.put((byte) (0xF0 | cp >> 18));
+                bytes.put((byte) (0x80 | cp >> 12 & 0x3F));
+                bytes.put((byte) (0x80 | cp >> 6 & 0x3F));
+                bytes.put((byte) (0x80 | cp & 0x3F));
+                return;
+            }
+            bytes.put((byte) '?');
+            if (bytes.remaining() < 4) drain();
+        }
+        if (c < 0x80) {
+            bytes.put((byte) c);
+        } else if (c < 0x800) {
+            bytes.put((byte) (0xC0 | c >> 6));
+            bytes.put((byte) (0x80 | c & 0x3F));
+        } else if (Character.isHighSurrogate(c)) {
+            pendingHigh = c;
+        } else if (Character.isLowSurrogate(c)) {
+            bytes.put((byte) '?');
+        } else {
+            bytes.put((byte) (0xE0 | c >> 12));
+            bytes.put((byte) (0x80 | c >> 6 & 0x3F));
+            bytes.put((byte) (0x80 | c & 0x3F));
+        }
+    }
+
+    private void drain() throws IOException {
+        bytes.flip();
+        while (bytes.hasRemaining()) channel.write(bytes);
+        bytes.clear();
+    }
+
+    private void flushChars() throws IOException {
+        if (chars == null || chars.length() == 0) return;
+        emit(chars, 0, chars.length());
+        chars.setLength(0);
+    }
+
+    private void emit(CharSequence s, int from, int to) throws IOException {
+        if (lineSeparator == null) {
+            text.append(s, from, to);
+            return;
+        }
+        int run = from;
+        for (int i = from; i < to; i++) {
+            if (s.charAt(i) != '\n') continue;
+            text.append(s, run, i).append(lineSeparator);
+            run = i + 1;
+        }
+        text.append(s, run, to);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (text != null) {
+            flushChars();
+            if (text instanceof Flushable) ((Flushable) text).flush();
+            return;
+        }
+        if (pendingHigh != 0) {
+            pendingHigh = 0;
+            if (bytes.remaining() < 1) drain();
+            bytes.put((byte) '?');
+        }
+        drain();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        flush();
+        if (chars != null) {
+            chars.setLength(0);
+            SPARE_CHARS.set(chars);
+        } else if (channel != null) {
+            bytes.clear();
+            SPARE_BYTES.set(bytes);
+        }
+        chars = null;
+        bytes = null;
+    }
+}
+
+class HtmlEscaper {
+    private static final String[] ESCAPES = new String[128];
+    private static final byte[][] ESCAPED_BYTES = new byte[128][];
+
+    static {
+        ESCAPES['&'] = "&amp;";
+        ESCAPES['<'] = "&lt;";
+        ESCAPES['>'] = "&gt;";
+        ESCAPES['"'] = "&quot;";
+        ESCAPES['\''] = "&#39;";
+        for (int c = 0; c < ESCAPES.length; c++) {
+            if (ESCAPES[c] != null) ESCAPED_BYTES[c] = ESCAPES[c].getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    public static void escape(CharSequence s, ReportWriter out) throws IOException {
+        if (s == null) s = "null";
+        int n = s.length();
+        int run = 0;
+        for (int i = firstEscape(s, 0); i >= 0; i = firstEscape(s, run)) {
+            if (i > run) out.write(s, run, i);
+            char c = s.charAt(i);
+            out.writeEncoded(ESCAPES[c], ESCAPED_BYTES[c]);
+            run = i + 1;
+        }
+        if (run < n) out.write(s, run, n);
+    }
+
+    private static int firstEscape(CharSequence s, int from) {
+        for (int i = from, n = s.length(); i < n; i++) {
+            char c = s.charAt(i);
+            if (c < 128 && ESCAPES[c] != null) return i;
+        }
+        return -1;
+    }
+}
+
+class ReportTemplate {
+    private final String[] texts;
+    private final byte[][] encoded;
+    private final int[] slots;
+    private final boolean html;
+
+    private ReportTemplate(List<String> texts, List<Integer> slots, boolean html) {
+        this.html = html;
+        this.texts = texts.toArray(new String[0]);
+        this.encoded = new byte[this.texts.length][];
+        for (int i = 0; i < this.texts.length; i++) {
+            encoded[i] = this.texts[i].getBytes(StandardCharsets.UTF_8);
+        }
+        this.slots = new int[slots.size()];
+        for (int i = 0; i < this.slots.length; i++) {
+            this.slots[i] = slots.get(i);
+        }
+    }
+
+    public static ReportTemplate compile(String layout) {
+        return compile(layout, false);
+    }
+
+    public static ReportTemplate compileHtml(String layout) {
+        return compile(layout, true);
+    }
+
+    private static ReportTemplate compile(String layout, boolean html) {
+        List<String> texts = new ArrayList<>();
+        List<Integer> slots = new ArrayList<>();
+        StringBuilder literal = new StringBuilder();
+        int i = 0;
+        while (i < layout.length()) {
+            char c = layout.charAt(i);
+            int close = c == '{' ? layout.indexOf('}', i) : -1;
+            if (close > i + 1 && isDigits(layout, i + 1, close)) {
+                texts.add(literal.toString());
+                literal.setLength(0);
+                slots.add(Integer.parseInt(layout.substring(i + 1, close)));
+                i = close + 1;
+            } else {
+                literal.append(c);
+                i++;
+            }
+        }
+        texts.add(literal.toString());
+        return new ReportTemplate(texts, slots, html);
+    }
+
+    private static boolean isDigits(String text, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (text.charAt(i) < '0' || text.charAt(i) > '9') return false;
+        }
+        return true;
+    }
+
+    public void render(ReportWriter out, CharSequence... values) throws IOException {
+        for (int i = 0; i < slots.length; i++) {
+            out.writeEncoded(texts[i], encoded[i]);
+            if (html) HtmlEscaper.escape(values[slots[i]], out);
+            else out.write(values[slots[i]]);
+        }
+        out.writeEncoded(texts[slots.length], encoded[slots.length]);
+    }
+}
+
+interface ReportSection {
+    void render(ReportWriter out) throws IOException;
 }
 
 class Report {
-    private String header;
-    private String content;
-    private String footer;
+    private static final ReportTemplate LINE = ReportTemplate.compile("{0}\n");
+    private static final ReportTemplate LAST_LINE = ReportTemplate.compile("{0}");
+    private ReportSection header = out -> LINE.render(out, (String) null);
+    private ReportSection content = out -> LINE.render(out, (String) null);
+    private ReportSection footer = out -> LAST_LINE.render(out, (String) null);
+
+    public void setHeader(String header) { this.header = out -> LINE.render(out, header); }
+    public void setHeader(ReportSection header) { this.header = header; }
+    public void setContent(String content) { this.content = out -> LINE.render(out, content); }
+    public void setContent(ReportSection content) { this.content = content; }
+    public void setFooter(String footer) { this.footer = out -> LAST_LINE.render(out, footer); }
+    public void setFooter(ReportSection footer) { this.footer = footer; }
 
-    public void setHeader(String header) { this.header = header; }
-    public void setContent(String content) { this.content = content; }
-    public void setFooter(String footer) { this.footer = footer; }
+    public void writeTo(Appendable out) throws IOException {
+        try (ReportWriter writer = new ReportWriter(out)) {
+            writeTo(writer);
+        }
+    }
+
+    public void writeTo(WritableByteChannel out) throws IOException {
+        try (ReportWriter writer = new ReportWriter(out)) {
+            writeTo(writer);
+        }
+    }
+
+    private void writeTo(ReportWriter out) throws IOException {
+        header.render(out);
+        content.render(out);
+        footer.render(out);
+    }
 
     @Override
     public String toString() {
-        return header + "\n" + content + "\n" + footer;
+        StringBuilder out = new StringBuilder();
+        try {
+            writeTo(out);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return out.toString();
     }
 }
 
@@ -73,20 +1424,26 @@ interface IReportBuilder {
 }
 
 class TextReportBuilder implements IReportBuilder {
+    private static final ReportTemplate HEADER = ReportTemplate.compile("TEXT HEADER: {0}\n");
+    private static final ReportTemplate CONTENT = ReportTemplate.compile("TEXT CONTENT: {0}\n");
+    private static final ReportTemplate FOOTER = ReportTemplate.compile("TEXT FOOTER: {0}");
     private Report report = new Report();
 
-    public void setHeader(String header) { report.setHeader("TEXT HEADER: " + header); }
-    public void setContent(String content) { report.setContent("TEXT CONTENT: " + content); }
-    public void setFooter(String footer) { report.setFooter("TEXT FOOTER: " + footer); }
+    public void setHeader(String header) { report.setHeader(out -> HEADER.render(out, header)); }
+    public void setContent(String content) { report.setContent(out -> CONTENT.render(out, content)); }
+    public void setFooter(String footer) { report.setFooter(out -> FOOTER.render(out, footer)); }
     public Report getReport() { return report; }
 }
 
 class HtmlReportBuilder implements IReportBuilder {
+    private static final ReportTemplate HEADER = ReportTemplate.compileHtml("<h1>{0}</h1>\n");
+    private static final ReportTemplate CONTENT = ReportTemplate.compileHtml("<p>{0}</p>\n");
+    private static final ReportTemplate FOOTER = ReportTemplate.compileHtml("<footer>{0}</footer>");
     private Report report = new Report();
 
-    public void setHeader(String header) { report.setHeader("<h1>" + header + "</h1>"); }
-    public void setContent(String content) { report.setContent("<p>" + content + "</p>"); }
-    public void setFooter(String footer) { report.setFooter("<footer>" + footer + "</footer>"); }
+    public void setHeader(String header) { report.setHeader(out -> HEADER.render(out, header)); }
+    public void setContent(String content) { report.setContent(out -> CONTENT.render(out, content)); }
+    public void setFooter(String footer) { report.setFooter(out -> FOOTER.render(out, footer)); }
     public Report getReport() { return report; }
 }
 